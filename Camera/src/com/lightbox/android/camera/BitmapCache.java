@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+
+/**
+ * An LRU cache of bitmaps which holds at most a given number of bytes.
+ *
+ * <p>The keys are spread over {@link #SEGMENT_COUNT} segments, each with its
+ * own lock and an equal share of the budget, so threads which look up
+ * different keys rarely wait for each other.
+ *
+ * <p>Without an {@link EvictionListener}, an evicted bitmap is still found by
+ * {@link #get} as long as someone else holds it (a "rescue"), like
+ * {@code gallery.LruCache}. With a listener, evicted bitmaps are handed to
+ * it instead, for example to give them back to the {@link BitmapPool}; the
+ * listener must then be sure no one draws them any more.
+ *
+ * <p>The bitmaps are shared: whoever gets one from the cache must not
+ * recycle it.
+ */
+public class BitmapCache<K> {
+    private static final int SEGMENT_COUNT = 8;
+
+    public interface EvictionListener<K> {
+        /**
+         * Called with the segment lock held, so it must not call back into
+         * the cache.
+         */
+        public void onEvicted(K key, Bitmap bitmap);
+    }
+
+    private static class WeakEntry<K> extends WeakReference<Bitmap> {
+        final K mKey;
+
+        WeakEntry(K key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            mKey = key;
+        }
+    }
+
+    private static class Segment<K> {
+        private final BitmapCache<K> mCache;
+        // Access order: the least recently used entry comes first.
+        private final LinkedHashMap<K, Bitmap> mLru =
+                new LinkedHashMap<K, Bitmap>(16, 0.75f, true);
+        private final HashMap<K, WeakEntry<K>> mWeak =
+                new HashMap<K, WeakEntry<K>>();
+        private final ReferenceQueue<Bitmap> mQueue =
+                new ReferenceQueue<Bitmap>();
+        private int mBytes;
+
+        Segment(BitmapCache<K> cache) {
+            mCache = cache;
+        }
+
+        synchronized Bitmap get(K key) {
+            Bitmap b = mLru.get(key);
+            if (b != null) {
+                mCache.mHits.incrementAndGet();
+                return b;
+            }
+            if (mCache.mListener == null) {
+                cleanUpWeak();
+                WeakEntry<K> entry = mWeak.remove(key);
+                b = entry == null ? null : entry.get();
+                if (b != null && !b.isRecycled()) {
+                    mCache.mRescues.incrementAndGet();
+                    putLocked(key, b);
+                    return b;
+                }
+            }
+            mCache.mMisses.incrementAndGet();
+            return null;
+        }
+
+        synchronized void put(K key, Bitmap b) {
+            if (mCache.mListener == null) {
+                cleanUpWeak();
+                mWeak.remove(key);
+            }
+            putLocked(key, b);
+        }
+
+        synchronized Bitmap remove(K key) {
+            Bitmap b = mLru.remove(key);
+            if (b != null) mBytes -= byteCount(b);
+            if (mCache.mListener == null) mWeak.remove(key);
+            return b;
+        }
+
+        synchronized void trim(int maxBytes) {
+            Iterator<Map.Entry<K, Bitmap>> it = mLru.entrySet().iterator();
+            while (mBytes > maxBytes && it.hasNext()) {
+                Map.Entry<K, Bitmap> e = it.next();
+                it.remove();
+                mBytes -= byteCount(e.getValue());
+                evict(e.getKey(), e.getValue());
+            }
+        }
+
+        synchronized int getBytes() {
+            return mBytes;
+        }
+
+        private void putLocked(K key, Bitmap b) {
+            Bitmap old = mLru.put(key, b);
+            mBytes += byteCount(b);
+            if (old != null) {
+                mBytes -= byteCount(old);
+                if (old != b) evict(key, old);
+            }
+            trim(mCache.mMaxBytes / SEGMENT_COUNT);
+        }
+
+        // The caller has taken the bitmap out of mLru and mBytes.
+        private void evict(K key, Bitmap b) {
+            mCache.mEvictions.incrementAndGet();
+            if (mCache.mListener != null) {
+                mCache.mListener.onEvicted(key, b);
+            } else {
+                mWeak.put(key, new WeakEntry<K>(key, b, mQueue));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void cleanUpWeak() {
+            WeakEntry<K> entry = (WeakEntry<K>) mQueue.poll();
+            while (entry != null) {
+                // The key may have been weakly put again since.
+                if (mWeak.get(entry.mKey) == entry) mWeak.remove(entry.mKey);
+                entry = (WeakEntry<K>) mQueue.poll();
+            }
+        }
+    }
+
+    private final Segment<K>[] mSegments;
+    private final EvictionListener<K> mListener;
+    private volatile int mMaxBytes;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+    private final AtomicInteger mRescues = new AtomicInteger();
+
+    public BitmapCache(int maxBytes) {
+        this(maxBytes, null);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BitmapCache(int maxBytes, EvictionListener<K> listener) {
+        mMaxBytes = maxBytes;
+        mListener = listener;
+        mSegments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mSegments[i] = new Segment<K>(this);
+        }
+    }
+
+    public Bitmap get(K key) {
+        return segment(key).get(key);
+    }
+
+    /**
+     * Adds a bitmap. A bitmap larger than a segment's share of the budget
+     * is not kept, and any bitmap cached under the key is dropped, without
+     * calling the eviction listener.
+     */
+    public void put(K key, Bitmap b) {
+        if (b == null) return;
+        if (byteCount(b) > mMaxBytes / SEGMENT_COUNT) {
+            segment(key).remove(key);
+            return;
+        }
+        segment(key).put(key, b);
+    }
+
+    /**
+     * Removes a bitmap without calling the eviction listener, and returns
+     * it.
+     */
+    public Bitmap remove(K key) {
+        return segment(key).remove(key);
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Evicts bitmaps until the cache holds at most {@code maxBytes}.
+     */
+    public void trim(int maxBytes) {
+        for (Segment<K> s : mSegments) {
+            s.trim(maxBytes / SEGMENT_COUNT);
+        }
+    }
+
+    public void clear() {
+        trim(0);
+    }
+
+    public int getBytes() {
+        int bytes = 0;
+        for (Segment<K> s : mSegments) {
+            bytes += s.getBytes();
+        }
+        return bytes;
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public int getRescueCount() {
+        return mRescues.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCache: " + getBytes() + "/" + mMaxBytes + " bytes, "
+                + mHits + " hits, " + mMisses + " misses, " + mEvictions
+                + " evictions, " + mRescues + " rescues";
+    }
+
+    private Segment<K> segment(K key) {
+        int h = key.hashCode();
+        // Spread the bits so keys which differ only in high bits (like
+        // boxed longs) still use all the segments.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mSegments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private static int byteCount(Bitmap b) {
+        return b.getRowBytes() * b.getHeight();
+    }
+}
@@ -39,6 +39,9 @@ import com.lightbox.android.camera.BitmapManager;
  *
  * <p>{@code cancelThreadDecoding(Thread,ContentResolver)} is sticky until
  * {@code allowThreadDecoding(Thread) } is called.
+ *
+ * <p>Thumbnails for a scrolling list are better decoded through a
+ * {@link ThumbnailScheduler}, which brings its own threads.
  */
 public class BitmapManager {
     private static final String TAG = "BitmapManager";
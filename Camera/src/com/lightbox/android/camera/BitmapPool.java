@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A pool of mutable bitmaps, bucketed by width, height and config.
+ *
+ * <p>Code which makes a short-lived bitmap gets it with {@link #get} and
+ * hands it back with {@link #put} instead of recycling it, so the next shot
+ * can reuse the memory instead of allocating a new bitmap. A bitmap from the
+ * pool still holds the pixels of its last user.
+ *
+ * <p>The pool holds at most {@link #getMaxBytes()} bytes. When it is full the
+ * least recently returned bitmaps are recycled. {@link #trim(int)} releases
+ * memory on request, for example when the activity is paused.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static class Key {
+        int mWidth;
+        int mHeight;
+        Bitmap.Config mConfig;
+
+        Key(int width, int height, Bitmap.Config config) {
+            set(width, height, config);
+        }
+
+        void set(int width, int height, Bitmap.Config config) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mWidth == k.mWidth && mHeight == k.mHeight
+                    && mConfig == k.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mWidth * 31 + mHeight) * 31 + mConfig.hashCode();
+        }
+    }
+
+    private final HashMap<Key, ArrayList<Bitmap>> mBuckets =
+            new HashMap<Key, ArrayList<Bitmap>>();
+    // All the pooled bitmaps, least recently returned first.
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+    // Used to look up buckets without allocating a key.
+    private final Key mLookup = new Key(0, 0, Bitmap.Config.ARGB_8888);
+
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+    private int mBytes;
+    private int mHits;
+    private int mMisses;
+
+    private static BitmapPool sPool;
+
+    private BitmapPool() {
+    }
+
+    public static synchronized BitmapPool instance() {
+        if (sPool == null) {
+            sPool = new BitmapPool();
+        }
+        return sPool;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size and config, taken from the
+     * pool if possible. Its content is undefined.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap b = poll(width, height, config);
+        return b != null ? b : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Like {@link #get}, but returns null if the pool has no such bitmap.
+     */
+    public synchronized Bitmap poll(int width, int height,
+            Bitmap.Config config) {
+        if (config == null) config = Bitmap.Config.ARGB_8888;
+        mLookup.set(width, height, config);
+        ArrayList<Bitmap> bucket = mBuckets.get(mLookup);
+        if (bucket == null || bucket.isEmpty()) {
+            mMisses++;
+            return null;
+        }
+        Bitmap b = bucket.remove(bucket.size() - 1);
+        mLru.remove(b);
+        mBytes -= byteCount(b);
+        mHits++;
+        return b;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. The caller must not use it any more.
+     * Bitmaps which cannot be reused are recycled.
+     */
+    public void put(Bitmap b) {
+        if (b == null || b.isRecycled()) return;
+        int bytes = byteCount(b);
+        if (!b.isMutable() || bytes > mMaxBytes) {
+            b.recycle();
+            return;
+        }
+        synchronized (this) {
+            Key key = new Key(b.getWidth(), b.getHeight(), config(b));
+            ArrayList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Bitmap>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.add(b);
+            mLru.addLast(b);
+            mBytes += bytes;
+            trimLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Recycles pooled bitmaps until the pool holds at most {@code maxBytes}.
+     */
+    public synchronized void trim(int maxBytes) {
+        trimLocked(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimLocked(0);
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimLocked(maxBytes);
+    }
+
+    public synchronized int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Sets {@code options} up to decode into a pooled bitmap of the given
+     * size, where the platform supports it (API level 11 and later, and only
+     * without subsampling). Returns true if a pooled bitmap was found.
+     */
+    public boolean setInBitmap(BitmapFactory.Options options, int width,
+            int height) {
+        if (Build.VERSION.SDK_INT < 0x0000000b /*Build.VERSION_CODES.HONEYCOMB*/
+                || options.inSampleSize > 1) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig;
+        Bitmap b = poll(width, height, config);
+        if (b == null) return false;
+        options.inBitmap = b;
+        options.inMutable = true;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool: " + mLru.size() + " bitmaps, " + mBytes
+                + " bytes, " + mHits + " hits, " + mMisses + " misses";
+    }
+
+    private void trimLocked(int maxBytes) {
+        while (mBytes > maxBytes && !mLru.isEmpty()) {
+            Bitmap b = mLru.removeFirst();
+            mLookup.set(b.getWidth(), b.getHeight(), config(b));
+            mBuckets.get(mLookup).remove(b);
+            mBytes -= byteCount(b);
+            b.recycle();
+        }
+        if (mLru.isEmpty() && mBytes != 0) {
+            Log.w(TAG, "lost track of " + mBytes + " bytes");
+            mBytes = 0;
+        }
+    }
+
+    private static Bitmap.Config config(Bitmap b) {
+        Bitmap.Config config = b.getConfig();
+        return config != null ? config : Bitmap.Config.ARGB_8888;
+    }
+
+    private static int byteCount(Bitmap b) {
+        return b.getRowBytes() * b.getHeight();
+    }
+}
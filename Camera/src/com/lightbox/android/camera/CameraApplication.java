@@ -16,17 +16,13 @@
 
 package com.lightbox.android.camera;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
 
 import android.app.Application;
 import android.content.Context;
-import android.location.Address;
-import android.location.Geocoder;
 import android.view.OrientationEventListener;
 
+import com.lightbox.android.camera.util.LocationService;
 import com.lightbox.android.camera.util.MyLocation;
 import com.lightbox.android.camera.util.MyLocation.LocationResult;
 
@@ -50,10 +46,22 @@ public class CameraApplication extends Application {
 	public double lat = 0;
 	public double lng = 0;
 	public String locStr = "";
+	private LocationService mLocationService;
 	
 	@Override
 	public void onCreate() {
 		super.onCreate();
+
+		mLocationService = new LocationService(this, new LocationService.Listener() {
+			@Override
+			public void onLocationUpdated(android.location.Location location, String address) {
+				if (location != null) {
+					setLocation(location.getLatitude(), location.getLongitude(), address);
+				} else {
+					setLocation(0, 0, address);
+				}
+			}
+		});
 				
 		mOrientationEventListener = new MyOrientationEventListener(getApplicationContext());
 		mOrientationEventListener.enable();
@@ -76,6 +84,9 @@ public class CameraApplication extends Application {
 	}
 	
 	public void requestLocationUpdate(boolean forceUpdate) {
+		// Cheap; keeps the cached fix fresh between the hourly requests.
+		mLocationService.refreshLastKnownLocation();
+
 		// Only request the location once an hour unless forceUpdate is set
 		if (!forceUpdate && (System.currentTimeMillis() - mLocationLastUpdateTime < 1000 * 60 * 60)) {
 			return;
@@ -87,17 +98,15 @@ public class CameraApplication extends Application {
 		myLocation.requestCurrentLocation(new LocationResult() {
 			@Override
 			public void gotLocation(final android.location.Location location) {
-				Thread thread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						updateWithNewLocation(location);
-					}
-				});
-				thread.start();				
+				mLocationService.onLocation(location);
 			}
 		});
     }
 	
+	public LocationService getLocationService() {
+		return mLocationService;
+	}
+	
 	public void setLocation(double _lat, double _lng, String _locStr) {
 		lat = _lat;
 		lng = _lng;
@@ -105,39 +114,7 @@ public class CameraApplication extends Application {
 	}
 	
 	public void updateWithNewLocation(android.location.Location loc) {
-		String locStr;
-
-		if (loc != null) {
-			double lat = loc.getLatitude();
-			double lng = loc.getLongitude();
-			String addrStr = "";
-
-			Geocoder gc = new Geocoder(this, Locale.getDefault());
-			try {
-				List<Address> addresses = gc.getFromLocation(lat, lng, 1);
-				StringBuilder sb = new StringBuilder();
-				if (addresses.size() > 0) {
-					Address addr = addresses.get(0);
-
-					for (int i = 0; i < addr.getMaxAddressLineIndex() && i < 1; i++) {
-						sb.append(addr.getAddressLine(i) + " ");
-					}
-					addrStr = sb.toString();
-				}
-			} catch (IOException e) {
-			}
-
-			locStr = addrStr;
-
-			this.lat = lat;
-			this.lng = lng;
-		} else {
-			locStr = "Location not found";
-
-			this.lat = 0;
-			this.lng = 0;
-		}
-		this.locStr = locStr;
+		mLocationService.onLocation(loc);
 	}
 	
 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Collects latency histograms for each stage of taking a picture.
+ *
+ * <p>Each stage has a fixed-size histogram. Buckets are 1ms wide below 32ms.
+ * Above that each power of two range is split into 16 buckets, so a
+ * percentile is off by at most about 6%. The histograms can be saved to a
+ * file with {@link #save()} and loaded with {@link #load()}, so they keep
+ * accumulating across sessions. {@link #saveInBackground()} and
+ * {@link #loadInBackground()} do that on a worker thread, in the order they
+ * are called. {@link #dump(PrintWriter)} prints p50, p90
+ * and p99 for every stage.
+ */
+public class CaptureLatencyTracker {
+    private static final String TAG = "CaptureLatencyTracker";
+
+    // Auto focus, from the request to the callback.
+    public static final int STAGE_FOCUS = 0;
+    // From the shutter press (after focus) to calling takePicture().
+    public static final int STAGE_PRESS_TO_TAKE_PICTURE = 1;
+    // From takePicture() to the shutter callback.
+    public static final int STAGE_SHUTTER = 2;
+    // From the shutter callback to the postview callback.
+    public static final int STAGE_POSTVIEW = 3;
+    // From the shutter callback to the JPEG callback.
+    public static final int STAGE_JPEG_CALLBACK = 4;
+    // Writing the JPEG file.
+    public static final int STAGE_FILE_WRITE = 5;
+    // Inserting the picture into the media store.
+    public static final int STAGE_MEDIA_INSERT = 6;
+    // The startPreview() call after a picture.
+    public static final int STAGE_PREVIEW_RESTART = 7;
+    public static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+        "focus", "press-to-takePicture", "shutter", "postview",
+        "jpeg-callback", "file-write", "media-insert", "preview-restart"
+    };
+
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * 17;
+
+    private static final int FILE_MAGIC = 0x4c41544e;  // "LATN"
+    private static final int FILE_VERSION = 1;
+
+    // Shared by all the trackers, so that a save from one activity instance
+    // is done before the load of the next.
+    private static final ExecutorService sIoExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+    private final File mFile;
+    private final int[][] mCounts = new int[STAGE_COUNT][BUCKET_COUNT];
+    private final long[] mSums = new long[STAGE_COUNT];
+    private final long[] mMax = new long[STAGE_COUNT];
+
+    /**
+     * Creates an empty tracker which saves to and loads from {@code file}.
+     */
+    public CaptureLatencyTracker(File file) {
+        mFile = file;
+    }
+
+    public synchronized void record(int stage, long latency) {
+        if (latency < 0) return;
+        mCounts[stage][bucketIndex(latency)]++;
+        mSums[stage] += latency;
+        if (latency > mMax[stage]) mMax[stage] = latency;
+    }
+
+    public synchronized int getCount(int stage) {
+        int count = 0;
+        int[] counts = mCounts[stage];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latency in ms under which {@code percent} percent of the
+     * samples of the stage fall, or -1 if there are no samples.
+     */
+    public synchronized long getPercentile(int stage, int percent) {
+        int count = getCount(stage);
+        if (count == 0) return -1;
+        // The rank of the sample we want, counting from 1.
+        long rank = Math.max(1, ((long) count * percent + 99) / 100);
+        int[] counts = mCounts[stage];
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax[stage]);
+            }
+        }
+        return mMax[stage];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            Arrays.fill(mCounts[i], 0);
+            mSums[i] = 0;
+            mMax[i] = 0;
+        }
+    }
+
+    /**
+     * Prints the count, mean, p50, p90, p99 and maximum of every stage.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Capture latency (ms):");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            int count = getCount(i);
+            pw.print("  ");
+            pw.print(STAGE_NAMES[i]);
+            pw.print(": n=");
+            pw.print(count);
+            if (count > 0) {
+                pw.print(" mean=");
+                pw.print(mSums[i] / count);
+                pw.print(" p50=");
+                pw.print(getPercentile(i, 50));
+                pw.print(" p90=");
+                pw.print(getPercentile(i, 90));
+                pw.print(" p99=");
+                pw.print(getPercentile(i, 99));
+                pw.print(" max=");
+                pw.print(mMax[i]);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * Writes the report of {@link #dump(PrintWriter)} to a text file.
+     * Returns true for success.
+     */
+    public boolean dumpToFile(File file) {
+        PrintWriter pw = null;
+        try {
+            pw = new PrintWriter(new FileOutputStream(file));
+            dump(pw);
+            return !pw.checkError();
+        } catch (FileNotFoundException ex) {
+            Log.w(TAG, "cannot write " + file, ex);
+            return false;
+        } finally {
+            if (pw != null) pw.close();
+        }
+    }
+
+    /**
+     * Runs {@link #load()} on a worker thread.
+     */
+    public void loadInBackground() {
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Runs {@link #save()} on a worker thread.
+     */
+    public void saveInBackground() {
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Adds the histograms saved in the file to this tracker. Returns true
+     * for success. The file is read without holding the tracker's lock.
+     */
+    public boolean load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+                    || in.readInt() != STAGE_COUNT
+                    || in.readInt() != BUCKET_COUNT) {
+                return false;
+            }
+            int[][] counts = new int[STAGE_COUNT][BUCKET_COUNT];
+            long[] sums = new long[STAGE_COUNT];
+            long[] max = new long[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                sums[i] = in.readLong();
+                max[i] = in.readLong();
+                for (int j = 0; j < BUCKET_COUNT; j++) {
+                    counts[i][j] = in.readInt();
+                }
+            }
+            synchronized (this) {
+                for (int i = 0; i < STAGE_COUNT; i++) {
+                    mSums[i] += sums[i];
+                    mMax[i] = Math.max(mMax[i], max[i]);
+                    for (int j = 0; j < BUCKET_COUNT; j++) {
+                        mCounts[i][j] += counts[i][j];
+                    }
+                }
+            }
+            return true;
+        } catch (FileNotFoundException ex) {
+            return false;
+        } catch (IOException ex) {
+            Log.w(TAG, "cannot read " + mFile, ex);
+            return false;
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+
+    /**
+     * Saves the histograms to the file. Returns true for success. Only the
+     * copy of the histograms is made with the tracker's lock held.
+     */
+    public boolean save() {
+        int[][] counts = new int[STAGE_COUNT][];
+        long[] sums;
+        long[] max;
+        synchronized (this) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                counts[i] = mCounts[i].clone();
+            }
+            sums = mSums.clone();
+            max = mMax.clone();
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(STAGE_COUNT);
+            out.writeInt(BUCKET_COUNT);
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                out.writeLong(sums[i]);
+                out.writeLong(max[i]);
+                for (int j = 0; j < BUCKET_COUNT; j++) {
+                    out.writeInt(counts[i][j]);
+                }
+            }
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException ex) {
+            Log.w(TAG, "cannot write " + mFile, ex);
+            return false;
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+
+    private static int bucketIndex(long latency) {
+        if (latency < LINEAR_BUCKETS) return (int) latency;
+        int v = (int) Math.min(latency, Integer.MAX_VALUE);
+        int shift = 31 - Integer.numberOfLeadingZeros(v) - 4;
+        return Math.min(shift * SUB_BUCKETS + (v >> shift), BUCKET_COUNT - 1);
+    }
+
+    // The largest latency which falls in the bucket.
+    private static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS - 1) return index;
+        return lowerBound(index + 1) - 1;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < LINEAR_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads EXIF tags straight from JPEG data in memory.
+ *
+ * <p>Unlike {@link android.media.ExifInterface}, this does not need a file.
+ * Only the APP1 segment is scanned. The parser reads IFD0, the Exif sub-IFD
+ * and IFD1 (the thumbnail IFD) and keeps the single-valued SHORT and LONG
+ * tags, which include the orientation and the location of the embedded
+ * thumbnail. Malformed data never throws: the tags read so far are kept and
+ * the rest are reported as missing.
+ */
+public class ExifParser {
+    public static final int IFD_0 = 0;
+    public static final int IFD_EXIF = 1;
+    public static final int IFD_1 = 2;
+
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    public static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    public static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    // "Exif\0\0"
+    private static final int EXIF_HEADER_LENGTH = 6;
+    private static final int IFD_ENTRY_SIZE = 12;
+    // An IFD never holds this many entries; anything larger is garbage.
+    private static final int MAX_IFD_ENTRIES = 1000;
+
+    private final ByteBuffer mBuffer;
+    private int mTiffStart;
+    private int mTiffEnd;
+
+    // The tags read, packed as (ifd << 16) | tag, and their values.
+    private int[] mKeys = new int[16];
+    private int[] mValues = new int[16];
+    private int mCount;
+
+    private ExifParser(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Parses the EXIF data of a JPEG image. Returns null if the data does not
+     * start with a JPEG header or has no EXIF segment.
+     */
+    public static ExifParser parse(byte[] jpeg) {
+        if (jpeg == null) return null;
+        return parse(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Parses the EXIF data of a JPEG image held in {@code jpeg}, from its
+     * position to its limit. The position of the buffer is not changed.
+     */
+    public static ExifParser parse(ByteBuffer jpeg) {
+        ExifParser parser = new ExifParser(jpeg.slice());
+        try {
+            if (!parser.findExif()) return null;
+            parser.readTiff();
+        } catch (BufferUnderflowException ex) {
+            // Truncated data, keep what we have.
+        } catch (IndexOutOfBoundsException ex) {
+            // Bad offset, keep what we have.
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the rotation in degrees given by the orientation tag of
+     * {@code jpeg}, or 0 if there is none.
+     */
+    public static int getOrientation(byte[] jpeg) {
+        ExifParser parser = parse(jpeg);
+        return parser == null ? 0 : parser.getOrientation();
+    }
+
+    /**
+     * Returns an APP1 segment, marker included, with an EXIF IFD0 holding
+     * only the orientation tag for a rotation of {@code degrees}. It can be
+     * inserted right after the SOI marker of a JPEG which has no EXIF data.
+     */
+    public static byte[] makeOrientationSegment(int degrees) {
+        int orientation;
+        switch (degrees) {
+            case 90:  orientation = 6; break;
+            case 180: orientation = 3; break;
+            case 270: orientation = 8; break;
+            default:  orientation = 1; break;
+        }
+        // Segment length, "Exif\0\0", TIFF header, one-entry IFD0.
+        int length = 2 + EXIF_HEADER_LENGTH + 8 + 2 + IFD_ENTRY_SIZE + 4;
+        ByteBuffer b = ByteBuffer.allocate(2 + length);
+        b.order(ByteOrder.BIG_ENDIAN);
+        b.put((byte) 0xFF).put((byte) MARKER_APP1);
+        b.putShort((short) length);
+        b.put(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+        b.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        b.putShort((short) 1);
+        b.putShort((short) TAG_ORIENTATION).putShort((short) TYPE_SHORT)
+                .putInt(1).putShort((short) orientation).putShort((short) 0);
+        b.putInt(0);  // No next IFD.
+        return b.array();
+    }
+
+    public boolean hasTag(int ifd, int tag) {
+        return indexOf(ifd, tag) >= 0;
+    }
+
+    public int getTag(int ifd, int tag, int defaultValue) {
+        int i = indexOf(ifd, tag);
+        return i < 0 ? defaultValue : mValues[i];
+    }
+
+    // Returns the rotation in degrees. We only recognise a subset of
+    // orientation tag values, the same as ImageManager.getExifOrientation().
+    public int getOrientation() {
+        switch (getTag(IFD_0, TAG_ORIENTATION, -1)) {
+            case 6:  // ExifInterface.ORIENTATION_ROTATE_90
+                return 90;
+            case 3:  // ExifInterface.ORIENTATION_ROTATE_180
+                return 180;
+            case 8:  // ExifInterface.ORIENTATION_ROTATE_270
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the offset of the embedded JPEG thumbnail from the start of the
+     * parsed data, or -1 if there is no usable thumbnail.
+     */
+    public int getThumbnailOffset() {
+        int offset = getTag(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT, -1);
+        int length = getTag(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, -1);
+        if (offset <= 0 || length <= 0 || offset > mTiffEnd - mTiffStart
+                || length > mTiffEnd - mTiffStart - offset) {
+            return -1;
+        }
+        return mTiffStart + offset;
+    }
+
+    /**
+     * Returns the length of the embedded JPEG thumbnail, or 0 if there is no
+     * usable thumbnail.
+     */
+    public int getThumbnailLength() {
+        if (getThumbnailOffset() < 0) return 0;
+        return getTag(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0);
+    }
+
+    // Walks the JPEG markers up to the APP1 segment holding the EXIF data and
+    // sets mTiffStart and mTiffEnd to the TIFF header and segment end.
+    private boolean findExif() {
+        ByteBuffer b = mBuffer;
+        int limit = b.limit();
+        if (limit < 4 || (b.get(0) & 0xFF) != 0xFF
+                || (b.get(1) & 0xFF) != MARKER_SOI) {
+            return false;
+        }
+        int pos = 2;
+        while (pos + 4 <= limit) {
+            if ((b.get(pos) & 0xFF) != 0xFF) return false;
+            int marker = b.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte.
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) return false;
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a length.
+                pos += 2;
+                continue;
+            }
+            int length = ((b.get(pos + 2) & 0xFF) << 8) | (b.get(pos + 3) & 0xFF);
+            if (length < 2) return false;
+            int end = Math.min(pos + 2 + length, limit);
+            if (marker == MARKER_APP1 && isExifHeader(pos + 4, end)) {
+                mTiffStart = pos + 4 + EXIF_HEADER_LENGTH;
+                mTiffEnd = end;
+                return true;
+            }
+            pos += 2 + length;
+        }
+        return false;
+    }
+
+    private boolean isExifHeader(int pos, int end) {
+        ByteBuffer b = mBuffer;
+        return end - pos >= EXIF_HEADER_LENGTH + 8
+                && b.get(pos) == 'E' && b.get(pos + 1) == 'x'
+                && b.get(pos + 2) == 'i' && b.get(pos + 3) == 'f'
+                && b.get(pos + 4) == 0 && b.get(pos + 5) == 0;
+    }
+
+    private void readTiff() {
+        ByteBuffer b = mBuffer;
+        int order = b.getShort(mTiffStart);
+        if (order == 0x4949) {          // "II"
+            b.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order == 0x4D4D) {   // "MM"
+            b.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return;
+        }
+        if (b.getShort(mTiffStart + 2) != 0x002A) return;
+
+        int ifd1 = readIfd(IFD_0, b.getInt(mTiffStart + 4));
+        int exif = getTag(IFD_0, TAG_EXIF_IFD_POINTER, 0);
+        if (exif > 0) readIfd(IFD_EXIF, exif);
+        if (ifd1 > 0) readIfd(IFD_1, ifd1);
+    }
+
+    // Reads the IFD at the given offset from the TIFF header and returns the
+    // offset of the next IFD, or 0 if there is none.
+    private int readIfd(int ifd, int offset) {
+        ByteBuffer b = mBuffer;
+        int size = mTiffEnd - mTiffStart;
+        if (offset < 8 || offset > size - 2) return 0;
+        int pos = mTiffStart + offset;
+        int entries = b.getShort(pos) & 0xFFFF;
+        pos += 2;
+        if (entries > MAX_IFD_ENTRIES
+                || entries * IFD_ENTRY_SIZE > mTiffEnd - pos) {
+            return 0;
+        }
+        for (int i = 0; i < entries; i++, pos += IFD_ENTRY_SIZE) {
+            int type = b.getShort(pos + 2) & 0xFFFF;
+            if (b.getInt(pos + 4) != 1) continue;
+            int tag = b.getShort(pos) & 0xFFFF;
+            if (type == TYPE_SHORT) {
+                put(ifd, tag, b.getShort(pos + 8) & 0xFFFF);
+            } else if (type == TYPE_LONG) {
+                put(ifd, tag, b.getInt(pos + 8));
+            }
+        }
+        if (pos + 4 > mTiffEnd) return 0;
+        return b.getInt(pos);
+    }
+
+    private void put(int ifd, int tag, int value) {
+        if (mCount == mKeys.length) {
+            int[] keys = new int[mCount * 2];
+            int[] values = new int[mCount * 2];
+            System.arraycopy(mKeys, 0, keys, 0, mCount);
+            System.arraycopy(mValues, 0, values, 0, mCount);
+            mKeys = keys;
+            mValues = values;
+        }
+        mKeys[mCount] = (ifd << 16) | tag;
+        mValues[mCount] = value;
+        mCount++;
+    }
+
+    private int indexOf(int ifd, int tag) {
+        int key = (ifd << 16) | tag;
+        for (int i = 0; i < mCount; i++) {
+            if (mKeys[i] == key) return i;
+        }
+        return -1;
+    }
+}
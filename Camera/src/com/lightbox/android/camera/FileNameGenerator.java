@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Makes the titles of captured pictures from their date.
+ *
+ * <p>The date format is parsed once, and a title is formatted only once per
+ * second. Pictures taken within the same second get a sequence suffix
+ * ("_1", "_2", ...) so that they never overwrite each other. No file system
+ * check is needed for that. It is safe to use from several threads.
+ */
+public class FileNameGenerator {
+    private final SimpleDateFormat mFormat;
+    private final Date mDate = new Date();
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    private long mLastSecond = Long.MIN_VALUE;
+    private String mLastTitle;
+    private int mSequence;
+
+    /**
+     * @param pattern a {@link SimpleDateFormat} pattern.
+     */
+    public FileNameGenerator(String pattern) {
+        mFormat = new SimpleDateFormat(pattern);
+    }
+
+    public synchronized String generate(long dateTaken) {
+        long second = dateTaken / 1000;
+        if (second == mLastSecond) {
+            mSequence++;
+            mBuilder.setLength(0);
+            return mBuilder.append(mLastTitle).append('_').append(mSequence)
+                    .toString();
+        }
+        mLastSecond = second;
+        mSequence = 0;
+        mDate.setTime(dateTaken);
+        mLastTitle = mFormat.format(mDate);
+        return mLastTitle;
+    }
+}
@@ -20,8 +20,8 @@ import com.lightbox.android.camera.Util;
 import com.lightbox.android.camera.gallery.BaseImageList;
 import com.lightbox.android.camera.gallery.IImage;
 import com.lightbox.android.camera.gallery.IImageList;
-import com.lightbox.android.camera.gallery.ImageList;
 import com.lightbox.android.camera.gallery.ImageListUber;
+import com.lightbox.android.camera.gallery.ImageSnapshotList;
 import com.lightbox.android.camera.gallery.VideoList;
 
 import android.content.ContentResolver;
@@ -57,6 +57,8 @@ public class ImageManager {
     private static final Uri STORAGE_URI = Images.Media.EXTERNAL_CONTENT_URI;
     private static final Uri VIDEO_STORAGE_URI =
             Uri.parse("content://media/external/video/media");
+    // Merged lists longer than this build their index in the background.
+    private static final int EAGER_MERGE_COUNT = 1000;
 
     private ImageManager() {
     }
@@ -155,6 +157,10 @@ public class ImageManager {
         }
     }
 
+    // Used by writeImage() when no writer is given; it does not sync.
+    private static final JpegWriter sDefaultWriter =
+            new JpegWriter(JpegWriter.SYNC_NONE);
+
     //
     // Stores a bitmap or a jpeg byte array to a file (using the specified
     // directory and filename). Also add an entry to the media store for
@@ -167,33 +173,78 @@ public class ImageManager {
             Bitmap source, byte[] jpegData, int[] degree) {
         // We should store image data earlier than insert it to ContentProvider,
         // otherwise we may not be able to generate thumbnail in time.
+        long size = writeImage(directory, filename, source, jpegData, degree);
+        if (size < 0) return null;
+        return insertImage(cr, title, dateTaken, location,
+                directory + "/" + filename, size, degree[0]);
+    }
+
+    //
+    // Stores a bitmap or a jpeg byte array to a file (using the specified
+    // directory and filename). The degree is a one element array which returns
+    // the orientation of the picture. Returns the size of the file, or -1 if
+    // it could not be written.
+    //
+    public static long writeImage(String directory, String filename,
+            Bitmap source, byte[] jpegData, int[] degree) {
+        return writeImage(sDefaultWriter, directory, filename, source,
+                jpegData, degree);
+    }
+
+    //
+    // Like writeImage() above, but a jpeg byte array is written with the
+    // given writer.
+    //
+    public static long writeImage(JpegWriter writer, String directory,
+            String filename, Bitmap source, byte[] jpegData, int[] degree) {
+        if (source == null) {
+            try {
+                long size = writer.write(new File(directory), filename,
+                        jpegData);
+                degree[0] = ExifParser.getOrientation(jpegData);
+                return size;
+            } catch (IOException ex) {
+                Log.w(TAG, ex);
+                return -1;
+            }
+        }
+
         OutputStream outputStream = null;
-        String filePath = directory + "/" + filename;
         try {
             File dir = new File(directory);
             if (!dir.exists()) dir.mkdirs();
             File file = new File(directory, filename);
             outputStream = new FileOutputStream(file);
-            if (source != null) {
-                source.compress(CompressFormat.JPEG, CameraApplication.JPEG_HIGH_QUALITY, outputStream);
-                degree[0] = 0;
-            } else {
-                outputStream.write(jpegData);
-                degree[0] = getExifOrientation(filePath);
-            }
+            source.compress(CompressFormat.JPEG, CameraApplication.JPEG_HIGH_QUALITY, outputStream);
+            degree[0] = 0;
         } catch (FileNotFoundException ex) {
             Log.w(TAG, ex);
-            return null;
-        } catch (IOException ex) {
-            Log.w(TAG, ex);
-            return null;
+            return -1;
         } finally {
             Util.closeSilently(outputStream);
         }
 
         // Read back the compressed file size.
-        long size = new File(directory, filename).length();
+        return new File(directory, filename).length();
+    }
 
+    //
+    // Adds an entry to the media store for a picture written by writeImage().
+    //
+    public static Uri insertImage(ContentResolver cr, String title,
+            long dateTaken, Location location, String filePath, long size,
+            int degree) {
+        return cr.insert(STORAGE_URI, makeImageValues(title, dateTaken,
+                location, filePath, size, degree));
+    }
+
+    //
+    // Returns the media store values of a picture written by writeImage(),
+    // to be inserted at getImageStorageUri().
+    //
+    public static ContentValues makeImageValues(String title, long dateTaken,
+            Location location, String filePath, long size, int degree) {
+        String filename = filePath.substring(filePath.lastIndexOf('/') + 1);
         ContentValues values = new ContentValues(9);
         values.put(Images.Media.TITLE, title);
 
@@ -203,7 +254,7 @@ public class ImageManager {
         values.put(Images.Media.DISPLAY_NAME, filename);
         values.put(Images.Media.DATE_TAKEN, dateTaken);
         values.put(Images.Media.MIME_TYPE, "image/jpeg");
-        values.put(Images.Media.ORIENTATION, degree[0]);
+        values.put(Images.Media.ORIENTATION, degree);
         values.put(Images.Media.DATA, filePath);
         values.put(Images.Media.SIZE, size);
 
@@ -211,8 +262,11 @@ public class ImageManager {
             values.put(Images.Media.LATITUDE, location.getLatitude());
             values.put(Images.Media.LONGITUDE, location.getLongitude());
         }
+        return values;
+    }
 
-        return cr.insert(STORAGE_URI, values);
+    public static Uri getImageStorageUri() {
+        return STORAGE_URI;
     }
 
     public static int getExifOrientation(String filepath) {
@@ -266,7 +320,7 @@ public class ImageManager {
 
         if (haveSdCard && location != DataLocation.INTERNAL) {
             if ((inclusion & INCLUDE_IMAGES) != 0) {
-                l.add(new ImageList(cr, STORAGE_URI, sort, bucketId));
+                l.add(new ImageSnapshotList(cr, STORAGE_URI, sort, bucketId));
             }
             if ((inclusion & INCLUDE_VIDEOS) != 0) {
                 l.add(new VideoList(cr, VIDEO_STORAGE_URI, sort, bucketId));
@@ -274,7 +328,7 @@ public class ImageManager {
         }
         if (location == DataLocation.INTERNAL || location == DataLocation.ALL) {
             if ((inclusion & INCLUDE_IMAGES) != 0) {
-                l.add(new ImageList(cr,
+                l.add(new ImageSnapshotList(cr,
                         Images.Media.INTERNAL_CONTENT_URI, sort, bucketId));
             }
         }
@@ -297,6 +351,11 @@ public class ImageManager {
 
         ImageListUber uber = new ImageListUber(
                 l.toArray(new IImageList[l.size()]), sort);
+        // Merging a large list on demand makes the first scroll to its end
+        // slow; do it ahead of time instead.
+        if (uber.getCount() > EAGER_MERGE_COUNT) {
+            uber.buildIndexInBackground();
+        }
         return uber;
     }
 
@@ -330,40 +389,13 @@ public class ImageManager {
         return makeImageList(cr, param);
     }
 
-    private static boolean checkFsWritable() {
-        // Create a temporary file to see whether a volume is really writeable.
-        // It's important not to put it in the root directory which may have a
-        // limit on the number of files.
-        String directoryName =
-                Environment.getExternalStorageDirectory().toString() + "/DCIM";
-        File directory = new File(directoryName);
-        if (!directory.isDirectory()) {
-            if (!directory.mkdirs()) {
-                return false;
-            }
-        }
-        return directory.canWrite();
-    }
-
     public static boolean hasStorage() {
         return hasStorage(true);
     }
 
+    // The answer is cached by StorageState until the next media broadcast.
     public static boolean hasStorage(boolean requireWriteAccess) {
-        String state = Environment.getExternalStorageState();
-
-        if (Environment.MEDIA_MOUNTED.equals(state)) {
-            if (requireWriteAccess) {
-                boolean writable = checkFsWritable();
-                return writable;
-            } else {
-                return true;
-            }
-        } else if (!requireWriteAccess
-                && Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
-            return true;
-        }
-        return false;
+        return StorageState.hasStorage(requireWriteAccess);
     }
 
     private static Cursor query(ContentResolver resolver, Uri uri,
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+/**
+ * Saves captured pictures on a dedicated writer thread.
+ *
+ * <p>The picture callback hands the JPEG data to {@link #addImage} and
+ * returns immediately, so the preview can be restarted while the file is
+ * still being written and inserted into the media store. When a request is
+ * done it is delivered to the {@link Listener} on the thread which created
+ * the saver (normally the main thread).
+ *
+ * <p>Written pictures are inserted into the media store in batches, so a
+ * burst pays for one provider transaction instead of one per picture. A
+ * batch is closed a short time after its first picture or when it is full.
+ *
+ * <p>The queue is bounded. If storage cannot keep up, {@code addImage} blocks
+ * until the writer has made room, so at most {@link #QUEUE_LIMIT} JPEG
+ * buffers wait to be written, plus at most a batch of written ones waiting
+ * for their insert. Callers which must not block can check
+ * {@link #isFull()} first.
+ *
+ * <p>{@link #finish()} must be called (from the creating thread) when the
+ * saver is no longer needed. It waits for the pending requests, delivers
+ * their results and stops the writer thread.
+ */
+public class ImageSaver extends Thread {
+    private static final String TAG = "ImageSaver";
+
+    // The maximum number of pictures waiting to be written, including the one
+    // being written.
+    public static final int QUEUE_LIMIT = 3;
+
+    // Written pictures are inserted into the media store together. A batch
+    // is closed this many ms after its first picture, or when it is full.
+    private static final int INSERT_BATCH_WINDOW = 300;
+    private static final int INSERT_BATCH_LIMIT = QUEUE_LIMIT;
+
+    public interface Listener {
+        /**
+         * Called on the creating thread when a picture has been stored.
+         * {@code request.mUri} is null if the picture could not be saved.
+         */
+        public void onImageSaved(SaveRequest request);
+    }
+
+    public static class SaveRequest {
+        public byte[] mData;
+        public String mTitle;
+        public long mDateTaken;
+        public Location mLocation;
+        // Whether a capture animation has already put the picture into the
+        // thumbnail, so only its uri is left to update.
+        public boolean mAnimated;
+
+        // Filled in by the writer thread.
+        public Uri mUri;
+        public int mDegree;
+        // Time in ms the request waited in the queue before being written.
+        public long mQueueLatency;
+        // Time in ms spent writing the file.
+        public long mWriteLatency;
+        // Time in ms spent inserting the picture into the media store, its
+        // share of the batch it was inserted with.
+        public long mInsertLatency;
+        public String mFilePath;
+        public long mSize;
+
+        private long mEnqueueTime;
+    }
+
+    private final Listener mListener;
+    private final JpegWriter mWriter;
+    private final MediaStoreWriter mMediaStoreWriter;
+    private final Handler mHandler;
+
+    // Requests waiting to be written. The head of the queue is the request
+    // currently being written; it is removed only after it is done.
+    private final ArrayList<SaveRequest> mQueue = new ArrayList<SaveRequest>();
+    // Requests written but not yet delivered to the listener.
+    private final ArrayList<SaveRequest> mDone = new ArrayList<SaveRequest>();
+    // Requests written but not inserted into the media store yet.
+    private final ArrayList<SaveRequest> mInserting =
+            new ArrayList<SaveRequest>();
+    // When the current insert batch is closed.
+    private long mInsertDeadline;
+    // Set by waitDone() to insert the current batch right away.
+    private boolean mFlushRequested;
+    private boolean mStop;
+
+    // Statistics, guarded by this. The save latency of a picture is the sum
+    // of its write and insert latencies.
+    private int mSavedCount;
+    private long mTotalSaveLatency;
+    private long mMaxSaveLatency;
+    private long mLastSaveLatency;
+    private int mMaxQueueDepth;
+
+    private final Runnable mDeliverResults = new Runnable() {
+        public void run() {
+            deliverResults();
+        }
+    };
+
+    /**
+     * Creates and starts a saver which writes the files with {@code writer}.
+     * With {@link JpegWriter#SYNC_BATCHED} the writer is flushed whenever
+     * the queue runs empty, so {@link #waitDone()} returns only after the
+     * files have been synced.
+     */
+    public ImageSaver(ContentResolver resolver, Listener listener,
+            JpegWriter writer) {
+        super(TAG);
+        mListener = listener;
+        mWriter = writer;
+        mMediaStoreWriter = new MediaStoreWriter(resolver,
+                ImageManager.getImageStorageUri(), Images.Media.DATA);
+        mHandler = new Handler();
+        start();
+    }
+
+    /**
+     * Queues a picture to be saved. Blocks while the queue is full.
+     */
+    public void addImage(byte[] data, String title, long dateTaken,
+            Location location) {
+        addImage(data, title, dateTaken, location, false);
+    }
+
+    /**
+     * Queues a picture to be saved, telling the listener whether its
+     * thumbnail has been animated already. Blocks while the queue is full.
+     */
+    public void addImage(byte[] data, String title, long dateTaken,
+            Location location, boolean animated) {
+        SaveRequest r = new SaveRequest();
+        r.mData = data;
+        r.mTitle = title;
+        r.mDateTaken = dateTaken;
+        r.mLocation = location;
+        r.mAnimated = animated;
+        synchronized (this) {
+            while (mQueue.size() >= QUEUE_LIMIT) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+            r.mEnqueueTime = SystemClock.uptimeMillis();
+            mQueue.add(r);
+            if (mQueue.size() > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueue.size();
+            }
+            notifyAll();  // Tell the writer thread there is a new request.
+        }
+    }
+
+    public synchronized boolean isFull() {
+        return mQueue.size() >= QUEUE_LIMIT;
+    }
+
+    // Returns the number of pictures not written yet, including the one
+    // being written.
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public synchronized long getLastSaveLatency() {
+        return mLastSaveLatency;
+    }
+
+    public synchronized long getMaxSaveLatency() {
+        return mMaxSaveLatency;
+    }
+
+    public synchronized long getAverageSaveLatency() {
+        return mSavedCount == 0 ? 0 : mTotalSaveLatency / mSavedCount;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            SaveRequest r = null;
+            synchronized (this) {
+                while (true) {
+                    if (!mQueue.isEmpty()) {
+                        r = mQueue.get(0);
+                        break;
+                    }
+                    if (!mInserting.isEmpty()) {
+                        long wait = mInsertDeadline - SystemClock.uptimeMillis();
+                        if (mStop || mFlushRequested || wait <= 0) break;
+                        waitLocked(wait);
+                    } else {
+                        mFlushRequested = false;
+                        if (mStop) return;
+                        waitLocked(0);
+                    }
+                }
+            }
+            if (r != null) {
+                writeImage(r);
+            } else {
+                insertImages();
+            }
+        }
+    }
+
+    // Writes the file of the request at the head of the queue and moves it
+    // to the pictures waiting for their media store insert.
+    private void writeImage(SaveRequest r) {
+        long start = SystemClock.uptimeMillis();
+        r.mQueueLatency = start - r.mEnqueueTime;
+        long size = -1;
+        try {
+            String directory = ImageManager.CAMERA_IMAGE_BUCKET_NAME;
+            String filename = r.mTitle + ".jpg";
+            int[] degree = new int[1];
+            size = ImageManager.writeImage(mWriter, directory, filename,
+                    null, r.mData, degree);
+            r.mDegree = degree[0];
+            r.mFilePath = directory + "/" + filename;
+        } catch (Exception ex) {
+            Log.e(TAG, "Exception while compressing image.", ex);
+        }
+
+        boolean last;
+        synchronized (this) {
+            last = mQueue.size() == 1;
+        }
+        if (last) {
+            // A batched sync is charged to the picture which ends it.
+            mWriter.flush();
+        }
+        r.mWriteLatency = SystemClock.uptimeMillis() - start;
+
+        boolean batchFull = false;
+        synchronized (this) {
+            mQueue.remove(0);
+            if (size < 0) {
+                finishLocked(r);
+            } else {
+                // The file must be written before the media store entry is
+                // inserted, otherwise the thumbnail may not be generated in
+                // time.
+                r.mSize = size;
+                if (mInserting.isEmpty()) {
+                    mInsertDeadline = SystemClock.uptimeMillis()
+                            + INSERT_BATCH_WINDOW;
+                }
+                mInserting.add(r);
+                batchFull = mInserting.size() >= INSERT_BATCH_LIMIT;
+            }
+            notifyAll();  // Wake up addImage() and waitDone().
+        }
+        if (size < 0) {
+            mHandler.post(mDeliverResults);
+        } else if (batchFull) {
+            insertImages();
+        }
+    }
+
+    // Inserts the written pictures into the media store in one batch.
+    private void insertImages() {
+        SaveRequest[] batch;
+        synchronized (this) {
+            batch = mInserting.toArray(new SaveRequest[mInserting.size()]);
+        }
+        if (batch.length == 0) return;
+
+        long start = SystemClock.uptimeMillis();
+        for (SaveRequest r : batch) {
+            mMediaStoreWriter.add(ImageManager.makeImageValues(r.mTitle,
+                    r.mDateTaken, r.mLocation, r.mFilePath, r.mSize,
+                    r.mDegree));
+        }
+        Uri[] uris = mMediaStoreWriter.flush();
+        long latency = SystemClock.uptimeMillis() - start;
+
+        int depth;
+        synchronized (this) {
+            for (int i = 0; i < batch.length; i++) {
+                SaveRequest r = batch[i];
+                r.mUri = uris[i];
+                // Each picture is charged its share of the batch.
+                r.mInsertLatency = latency / batch.length;
+                finishLocked(r);
+            }
+            mInserting.clear();
+            depth = mQueue.size();
+            notifyAll();  // Wake up waitDone().
+        }
+        Log.v(TAG, "inserted " + batch.length + " pictures in " + latency
+                + "ms, queue depth = " + depth);
+        mHandler.post(mDeliverResults);
+    }
+
+    private void finishLocked(SaveRequest r) {
+        long latency = r.mWriteLatency + r.mInsertLatency;
+        mDone.add(r);
+        mSavedCount++;
+        mTotalSaveLatency += latency;
+        mLastSaveLatency = latency;
+        if (latency > mMaxSaveLatency) {
+            mMaxSaveLatency = latency;
+        }
+        Log.v(TAG, "write latency = " + r.mWriteLatency + "ms, insert "
+                + r.mInsertLatency + "ms, queued " + r.mQueueLatency + "ms");
+    }
+
+    private void waitLocked(long timeout) {
+        try {
+            wait(timeout);
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+    }
+
+    /**
+     * Waits until all the queued pictures are written and inserted into the
+     * media store, then delivers their results. Must be called on the
+     * creating thread.
+     */
+    public void waitDone() {
+        synchronized (this) {
+            // Don't wait for the batch window to close.
+            mFlushRequested = true;
+            notifyAll();
+            while (!mQueue.isEmpty() || !mInserting.isEmpty()) {
+                waitLocked(0);
+            }
+        }
+        deliverResults();
+    }
+
+    /**
+     * Writes the pending pictures and stops the writer thread. Must be called
+     * on the creating thread. The saver cannot be used afterwards.
+     */
+    public void finish() {
+        waitDone();
+        synchronized (this) {
+            mStop = true;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+        mHandler.removeCallbacks(mDeliverResults);
+        deliverResults();
+    }
+
+    private void deliverResults() {
+        SaveRequest[] done;
+        synchronized (this) {
+            if (mDone.isEmpty()) return;
+            done = mDone.toArray(new SaveRequest[mDone.size()]);
+            mDone.clear();
+        }
+        for (SaveRequest r : done) {
+            mListener.onImageSaved(r);
+        }
+    }
+}
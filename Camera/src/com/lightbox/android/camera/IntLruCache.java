@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+/**
+ * An LRU cache with int keys which allocates nothing after construction.
+ *
+ * <p>The entries live in parallel arrays, one slot per entry, and are linked
+ * from the most to the least recently used through {@code mNext} and
+ * {@code mPrev}. Keys are found through an open addressing table of slot
+ * numbers. When the cache is full, the least recently used slot is reused.
+ *
+ * <p>It is not thread-safe; callers must hold their own lock.
+ */
+public class IntLruCache<V> {
+    private static final int NONE = -1;
+
+    private final int mKeys[];
+    private final Object mValues[];
+    private final int mNext[];
+    private final int mPrev[];
+    // Slot numbers by key hash, NONE for an empty bucket. It is at least
+    // twice the capacity, so probes stay short.
+    private final int mTable[];
+    private final int mMask;
+
+    private int mSize;
+    // The most and the least recently used slots.
+    private int mHead = NONE;
+    private int mTail = NONE;
+
+    public IntLruCache(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 1)) * 4;
+        mTable = new int[tableSize];
+        mMask = tableSize - 1;
+        clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        if (slot == NONE) return null;
+        moveToHead(slot);
+        return (V) mValues[slot];
+    }
+
+    public void put(int key, V value) {
+        int slot = find(key);
+        if (slot == NONE) {
+            if (mSize < mKeys.length) {
+                slot = mSize++;
+            } else {
+                // Reuse the least recently used slot.
+                slot = mTail;
+                removeFromTable(mKeys[slot]);
+                unlink(slot);
+            }
+            mKeys[slot] = key;
+            insertIntoTable(key, slot);
+            linkAtHead(slot);
+        } else {
+            moveToHead(slot);
+        }
+        mValues[slot] = value;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = NONE;
+        }
+        for (int i = 0; i < mSize; i++) {
+            mValues[i] = null;
+        }
+        mSize = 0;
+        mHead = NONE;
+        mTail = NONE;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private static int hash(int key) {
+        // The keys are often consecutive; spread them over the table.
+        return key * 0x9E3779B9;
+    }
+
+    private int find(int key) {
+        int i = hash(key) & mMask;
+        while (mTable[i] != NONE) {
+            if (mKeys[mTable[i]] == key) return mTable[i];
+            i = (i + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    private void insertIntoTable(int key, int slot) {
+        int i = hash(key) & mMask;
+        while (mTable[i] != NONE) {
+            i = (i + 1) & mMask;
+        }
+        mTable[i] = slot;
+    }
+
+    private void removeFromTable(int key) {
+        int i = hash(key) & mMask;
+        while (mKeys[mTable[i]] != key) {
+            i = (i + 1) & mMask;
+        }
+        // Shift the following entries of the probe run back, so that no
+        // lookup stops early at the hole.
+        int hole = i;
+        int j = hole;
+        while (true) {
+            j = (j + 1) & mMask;
+            if (mTable[j] == NONE) break;
+            int home = hash(mKeys[mTable[j]]) & mMask;
+            // Move the entry unless its home lies cyclically in (hole, j].
+            boolean movable = hole <= j
+                    ? (home <= hole || home > j)
+                    : (home <= hole && home > j);
+            if (movable) {
+                mTable[hole] = mTable[j];
+                hole = j;
+            }
+        }
+        mTable[hole] = NONE;
+    }
+
+    private void moveToHead(int slot) {
+        if (slot == mHead) return;
+        unlink(slot);
+        linkAtHead(slot);
+    }
+
+    private void linkAtHead(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) mPrev[mHead] = slot;
+        mHead = slot;
+        if (mTail == NONE) mTail = slot;
+    }
+
+    private void unlink(int slot) {
+        int prev = mPrev[slot];
+        int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+}
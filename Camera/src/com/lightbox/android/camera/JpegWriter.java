@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Writes encoded pictures to storage through a {@link FileChannel}.
+ *
+ * <p>Each picture is written to a hidden temporary file, which is then
+ * renamed to the real name. Readers never see a partial file under the real
+ * name. The sync policy decides how much durability is paid for:
+ * <ul>
+ * <li>{@link #SYNC_NONE}: the data is left to the kernel to write back.
+ * This is the fastest, and the old behaviour.
+ * <li>{@link #SYNC_PER_FILE}: every file is synced before it is renamed, so
+ * a renamed file is always complete on disk.
+ * <li>{@link #SYNC_BATCHED}: files are renamed right away and synced
+ * together once the batch is full or {@link #flush()} is called. One sync
+ * is paid per batch, but a crash can lose the data of the last batch.
+ * </ul>
+ *
+ * <p>A writer can also be asked to preallocate, that is grow the temporary
+ * file to its final size before writing it. This is off by default: on the
+ * vfat file systems of most SD cards, extending a file writes zeros over
+ * the new clusters, so every byte is written twice. JpegWriterBenchmark in
+ * the tests measures the policies and the preallocation on a device.
+ *
+ * <p>The methods are synchronized, but the writer is meant to be used by a
+ * single writer thread.
+ */
+public class JpegWriter {
+    private static final String TAG = "JpegWriter";
+
+    public static final int SYNC_NONE = 0;
+    public static final int SYNC_PER_FILE = 1;
+    public static final int SYNC_BATCHED = 2;
+
+    private static final int DEFAULT_BATCH_SIZE = 4;
+
+    private final int mSyncPolicy;
+    private final int mBatchSize;
+    private final boolean mPreallocate;
+    // Files written but not synced yet, with SYNC_BATCHED.
+    private final ArrayList<RandomAccessFile> mPending =
+            new ArrayList<RandomAccessFile>();
+
+    public JpegWriter(int syncPolicy) {
+        this(syncPolicy, DEFAULT_BATCH_SIZE);
+    }
+
+    public JpegWriter(int syncPolicy, int batchSize) {
+        this(syncPolicy, batchSize, false);
+    }
+
+    public JpegWriter(int syncPolicy, int batchSize, boolean preallocate) {
+        mSyncPolicy = syncPolicy;
+        mBatchSize = Math.max(1, batchSize);
+        mPreallocate = preallocate;
+    }
+
+    public int getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    /**
+     * Writes {@code data} to {@code directory/filename}, creating the
+     * directory if needed. Returns the number of bytes written.
+     */
+    public synchronized long write(File directory, String filename,
+            byte[] data) throws IOException {
+        if (!directory.exists()) directory.mkdirs();
+        File temp = new File(directory, "." + filename + ".tmp");
+        File file = new File(directory, filename);
+
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        boolean keepOpen = false;
+        long written = 0;
+        try {
+            if (mPreallocate) {
+                // Reserve the space up front, so we fail early if the card
+                // is full.
+                raf.setLength(data.length);
+            }
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            if (mSyncPolicy == SYNC_PER_FILE) {
+                channel.force(false);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("cannot rename " + temp + " to " + file);
+            }
+            if (mSyncPolicy == SYNC_BATCHED) {
+                mPending.add(raf);
+                keepOpen = true;
+                if (mPending.size() >= mBatchSize) flush();
+            }
+        } catch (IOException ex) {
+            temp.delete();
+            throw ex;
+        } finally {
+            if (!keepOpen) Util.closeSilently(raf);
+        }
+        return written;
+    }
+
+    /**
+     * Syncs the files written since the last flush. Does nothing unless the
+     * policy is {@link #SYNC_BATCHED}.
+     */
+    public synchronized void flush() {
+        for (int i = 0, n = mPending.size(); i < n; i++) {
+            RandomAccessFile raf = mPending.get(i);
+            try {
+                raf.getChannel().force(false);
+            } catch (IOException ex) {
+                Log.w(TAG, "sync failed", ex);
+            } finally {
+                Util.closeSilently(raf);
+            }
+        }
+        mPending.clear();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * Inserts rows into a content provider in batches.
+ *
+ * <p>Rows are collected with {@link #add(ContentValues)} and inserted
+ * together by {@link #flush()} with a single
+ * {@link ContentResolver#applyBatch}. That is one IPC round trip and one
+ * provider transaction for the whole batch instead of one per row, and,
+ * unlike {@code bulkInsert}, it still returns the URI of every row. If the
+ * batch fails, the rows are inserted one by one so that one bad row does not
+ * lose the others.
+ *
+ * <p>A provider which does not apply the batch in a transaction, like the
+ * media store, keeps the rows inserted before the failure. So each row needs
+ * a key column which identifies it, such as the file path; before a row is
+ * inserted again, the writer looks it up by its key and reuses the row it
+ * finds.
+ *
+ * <p>The target is any provider table, so the writer can be exercised
+ * against a local provider as well as the media store. It is not thread
+ * safe.
+ */
+public class MediaStoreWriter {
+    private static final String TAG = "MediaStoreWriter";
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mAuthority;
+    private final String mKeyColumn;
+    private final ArrayList<ContentValues> mPending =
+            new ArrayList<ContentValues>();
+
+    /**
+     * @param keyColumn a column whose value is unique to each row, used to
+     *     find the rows a failed batch inserted anyway.
+     */
+    public MediaStoreWriter(ContentResolver resolver, Uri uri,
+            String keyColumn) {
+        mResolver = resolver;
+        mUri = uri;
+        mAuthority = uri.getAuthority();
+        mKeyColumn = keyColumn;
+    }
+
+    /**
+     * Queues a row. Returns its index in the array returned by the next
+     * {@link #flush()}.
+     */
+    public int add(ContentValues values) {
+        mPending.add(values);
+        return mPending.size() - 1;
+    }
+
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Inserts the queued rows. Returns their URIs in the order they were
+     * added; an entry is null if that row could not be inserted.
+     */
+    public Uri[] flush() {
+        int count = mPending.size();
+        Uri[] uris = new Uri[count];
+        if (count == 0) return uris;
+
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(count);
+        for (int i = 0; i < count; i++) {
+            ops.add(ContentProviderOperation.newInsert(mUri)
+                    .withValues(mPending.get(i)).build());
+        }
+        try {
+            ContentProviderResult[] results =
+                    mResolver.applyBatch(mAuthority, ops);
+            for (int i = 0; i < count && i < results.length; i++) {
+                uris[i] = results[i].uri;
+            }
+            if (results.length < count) insertMissing(uris);
+        } catch (RemoteException ex) {
+            Log.w(TAG, "batch insert failed", ex);
+            insertMissing(uris);
+        } catch (OperationApplicationException ex) {
+            Log.w(TAG, "batch insert failed", ex);
+            insertMissing(uris);
+        } catch (RuntimeException ex) {
+            // Providers without batch support, or a bad row.
+            Log.w(TAG, "batch insert failed", ex);
+            insertMissing(uris);
+        }
+        mPending.clear();
+        return uris;
+    }
+
+    // Inserts the rows which have no URI yet, one by one, unless the failed
+    // batch inserted them already.
+    private void insertMissing(Uri[] uris) {
+        for (int i = 0; i < uris.length; i++) {
+            if (uris[i] != null) continue;
+            try {
+                ContentValues values = mPending.get(i);
+                uris[i] = findRow(values);
+                if (uris[i] == null) {
+                    uris[i] = mResolver.insert(mUri, values);
+                }
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "insert failed", ex);
+            }
+        }
+    }
+
+    // Returns the URI of the row with the same key as the given values, or
+    // null if there is none.
+    private Uri findRow(ContentValues values) {
+        String key = values.getAsString(mKeyColumn);
+        if (key == null) return null;
+        Cursor c = mResolver.query(mUri, new String[] {BaseColumns._ID},
+                mKeyColumn + "=?", new String[] {key}, null);
+        if (c == null) return null;
+        try {
+            return c.moveToFirst()
+                    ? ContentUris.withAppendedId(mUri, c.getLong(0))
+                    : null;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -39,6 +39,14 @@ public class ShutterButton extends ImageView {
          */
         void onShutterButtonFocus(ShutterButton b, boolean pressed);
         void onShutterButtonClick(ShutterButton b);
+
+        /**
+         * Called when a ShutterButton has been held down. If the listener
+         * returns true, no click is delivered when the button is released.
+         *
+         * @param b The ShutterButton that was long-pressed.
+         */
+        boolean onShutterButtonLongPressed(ShutterButton b);
     }
 
     private OnShutterButtonListener mListener;
@@ -110,6 +118,14 @@ public class ShutterButton extends ImageView {
         }
     }
 
+    @Override
+    public boolean performLongClick() {
+        if (mListener != null && mListener.onShutterButtonLongPressed(this)) {
+            return true;
+        }
+        return super.performLongClick();
+    }
+
     @Override
     public boolean performClick() {
         boolean result = super.performClick();
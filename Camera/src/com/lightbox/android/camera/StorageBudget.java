@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Estimates how many more pictures fit on the external storage.
+ *
+ * <p>{@link MenuHelper#calculatePicturesRemaining()} checks that the storage
+ * is writable and runs a {@code StatFs} each time, and assumes 1.5MB per
+ * picture. This class stats the file system only when its figure is
+ * {@link #invalidate() invalidated} (on media broadcasts), when it is older
+ * than {@link #RESTAT_INTERVAL}, or after {@link #RESTAT_PICTURES} pictures.
+ * Between stats, every picture taken is subtracted locally.
+ *
+ * <p>The picture size is learned: a running average of the JPEG size is kept
+ * for every picture size and JPEG quality. {@link #save} and {@link #load}
+ * keep the averages across sessions.
+ */
+public class StorageBudget {
+    private static final String TAG = "StorageBudget";
+
+    // Used until a picture of the current size and quality has been taken.
+    private static final int DEFAULT_PICTURE_BYTES = 1500000;
+    // The weight of a new picture in the running average is at least
+    // 1 / AVERAGE_WINDOW.
+    private static final int AVERAGE_WINDOW = 16;
+
+    public static final long RESTAT_INTERVAL = 60 * 1000;
+    public static final int RESTAT_PICTURES = 20;
+
+    private static final String PREF_PREFIX = "storage_budget_";
+
+    private static class Average {
+        long mBytes;
+        int mCount;
+    }
+
+    private final HashMap<String, Average> mAverages =
+            new HashMap<String, Average>();
+    private String mKey;
+
+    // The result of the last stat: available bytes, or one of the
+    // MenuHelper error codes.
+    private long mAvailableBytes;
+    private boolean mValid;
+    private long mStatTime;
+    private int mPicturesSinceStat;
+
+    /**
+     * Sets the picture size and JPEG quality of the next pictures.
+     */
+    public synchronized void setPictureFormat(int width, int height,
+            int quality) {
+        mKey = width + "x" + height + "_" + quality;
+    }
+
+    /**
+     * Accounts for a picture of the current format which is about to be
+     * written.
+     */
+    public synchronized void onPictureTaken(int bytes) {
+        if (mKey != null) {
+            Average average = mAverages.get(mKey);
+            if (average == null) {
+                average = new Average();
+                average.mBytes = bytes;
+                mAverages.put(mKey, average);
+            } else {
+                int weight = Math.min(average.mCount + 1, AVERAGE_WINDOW);
+                average.mBytes += (bytes - average.mBytes) / weight;
+            }
+            average.mCount++;
+        }
+        if (mValid && mAvailableBytes >= 0) {
+            mAvailableBytes = Math.max(0, mAvailableBytes - bytes);
+        }
+        mPicturesSinceStat++;
+    }
+
+    /**
+     * Makes the next {@link #getPicturesRemaining()} stat the file system.
+     */
+    public synchronized void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Returns the number of pictures of the current format which still fit,
+     * or {@link MenuHelper#NO_STORAGE_ERROR} or
+     * {@link MenuHelper#CANNOT_STAT_ERROR}.
+     */
+    public synchronized int getPicturesRemaining() {
+        if (!mValid || mPicturesSinceStat >= RESTAT_PICTURES
+                || SystemClock.uptimeMillis() - mStatTime >= RESTAT_INTERVAL) {
+            stat();
+        }
+        if (mAvailableBytes < 0) return (int) mAvailableBytes;
+        return (int) (mAvailableBytes / getPictureBytes());
+    }
+
+    // Returns the expected size of a picture of the current format.
+    public synchronized long getPictureBytes() {
+        Average average = mKey == null ? null : mAverages.get(mKey);
+        return average != null && average.mBytes > 0
+                ? average.mBytes : DEFAULT_PICTURE_BYTES;
+    }
+
+    public synchronized void load(SharedPreferences prefs) {
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            String name = e.getKey();
+            if (!name.startsWith(PREF_PREFIX)
+                    || !(e.getValue() instanceof Long)) {
+                continue;
+            }
+            Average average = new Average();
+            average.mBytes = (Long) e.getValue();
+            // Let new pictures move a loaded average quickly.
+            average.mCount = AVERAGE_WINDOW / 4;
+            mAverages.put(name.substring(PREF_PREFIX.length()), average);
+        }
+    }
+
+    public synchronized void save(SharedPreferences.Editor editor) {
+        for (Map.Entry<String, Average> e : mAverages.entrySet()) {
+            editor.putLong(PREF_PREFIX + e.getKey(), e.getValue().mBytes);
+        }
+    }
+
+    private void stat() {
+        mValid = true;
+        mStatTime = SystemClock.uptimeMillis();
+        mPicturesSinceStat = 0;
+        try {
+            if (!ImageManager.hasStorage()) {
+                mAvailableBytes = MenuHelper.NO_STORAGE_ERROR;
+            } else {
+                StatFs stat = new StatFs(
+                        Environment.getExternalStorageDirectory().toString());
+                mAvailableBytes = (long) stat.getAvailableBlocks()
+                        * stat.getBlockSize();
+            }
+        } catch (Exception ex) {
+            // if we can't stat the filesystem then we don't know how many
+            // pictures are remaining.  it might be zero but just leave it
+            // blank since we really don't know.
+            Log.e(TAG, "Fail to access sdcard", ex);
+            mAvailableBytes = MenuHelper.CANNOT_STAT_ERROR;
+        }
+    }
+}
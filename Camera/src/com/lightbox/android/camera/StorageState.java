@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.io.File;
+
+import android.content.Intent;
+import android.os.Environment;
+
+/**
+ * Caches whether the external storage is mounted and writable.
+ *
+ * <p>Finding out means reading the storage state and checking (or creating)
+ * the DCIM directory on the card. The answer is kept here and read with a
+ * volatile load. It is dropped when a media broadcast arrives, see
+ * {@link #onMediaAction(String)}, and worked out again on the next read.
+ * Whoever stops listening to the broadcasts must call {@link #invalidate()}
+ * when it starts again, as the storage may have changed in between.
+ */
+public class StorageState {
+    private static final int UNKNOWN = 0;
+    private static final int NONE = 1;
+    private static final int READ_ONLY = 2;
+    private static final int WRITABLE = 3;
+
+    private static volatile int sState = UNKNOWN;
+
+    private StorageState() {
+    }
+
+    public static boolean hasStorage(boolean requireWriteAccess) {
+        int state = sState;
+        if (state == UNKNOWN) {
+            state = probe();
+            sState = state;
+        }
+        return state == WRITABLE || (!requireWriteAccess && state == READ_ONLY);
+    }
+
+    /**
+     * Updates the cached state for a media broadcast.
+     */
+    public static void onMediaAction(String action) {
+        if (Intent.ACTION_MEDIA_UNMOUNTED.equals(action)
+                || Intent.ACTION_MEDIA_EJECT.equals(action)
+                || Intent.ACTION_MEDIA_REMOVED.equals(action)
+                || Intent.ACTION_MEDIA_BAD_REMOVAL.equals(action)
+                || Intent.ACTION_MEDIA_SHARED.equals(action)
+                || Intent.ACTION_MEDIA_CHECKING.equals(action)) {
+            // The card is going or gone; no need to look at it.
+            sState = NONE;
+        } else {
+            invalidate();
+        }
+    }
+
+    public static void invalidate() {
+        sState = UNKNOWN;
+    }
+
+    private static int probe() {
+        String state = Environment.getExternalStorageState();
+        if (Environment.MEDIA_MOUNTED.equals(state)) {
+            return checkFsWritable() ? WRITABLE : READ_ONLY;
+        } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+            return READ_ONLY;
+        }
+        return NONE;
+    }
+
+    private static boolean checkFsWritable() {
+        // Create a temporary file to see whether a volume is really writeable.
+        // It's important not to put it in the root directory which may have a
+        // limit on the number of files.
+        String directoryName =
+                Environment.getExternalStorageDirectory().toString() + "/DCIM";
+        File directory = new File(directoryName);
+        if (!directory.isDirectory()) {
+            if (!directory.mkdirs()) {
+                return false;
+            }
+        }
+        return directory.canWrite();
+    }
+}
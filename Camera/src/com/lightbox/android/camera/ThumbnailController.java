@@ -23,7 +23,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
@@ -34,19 +36,24 @@ import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import com.lightbox.android.camera.MenuHelper;
 
 /**
  * A controller shows thumbnail picture on a button. The thumbnail picture
  * corresponds to a URI of the original picture/video. The thumbnail bitmap
- * and the URI can be saved to a file (and later loaded from it).
+ * and the URI can be saved to a file (and later loaded from it). The file
+ * holds the raw pixels, and is memory mapped to load them.
  */
 public class ThumbnailController {
 
@@ -89,36 +96,151 @@ public class ThumbnailController {
 
     private static final int BUFSIZE = 4096;
 
-    // Stores the data from the specified file.
-    // Returns true for success.
-    public boolean storeData(String filePath) {
-        if (mUri == null) {
+    // The thumbnail file: a header followed by the raw pixels, so loading it
+    // is a copy instead of a PNG decode.
+    private static final int FILE_MAGIC = 0x54484d42;  // "THMB"
+    private static final int FILE_VERSION = 1;
+    private static final int CONFIG_RGB_565 = 0;
+    private static final int CONFIG_ARGB_8888 = 1;
+
+    // Stores the data to the specified file. The pixels are copied here and
+    // written in the background; the file is replaced atomically.
+    // Returns true if there was something to store.
+    public boolean storeData(final String filePath) {
+        if (mUri == null || mThumb == null) {
             return false;
         }
 
+        Bitmap thumb = mThumb;
+        int config = CONFIG_ARGB_8888;
+        if (thumb.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else if (thumb.getConfig() != Bitmap.Config.ARGB_8888) {
+            thumb = thumb.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        byte[] uri;
+        try {
+            uri = mUri.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+        int pixelBytes = thumb.getRowBytes() * thumb.getHeight();
+        final ByteBuffer buffer = ByteBuffer.allocate(
+                6 * 4 + uri.length + pixelBytes);
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(FILE_VERSION);
+        buffer.putInt(uri.length);
+        buffer.put(uri);
+        buffer.putInt(thumb.getWidth());
+        buffer.putInt(thumb.getHeight());
+        buffer.putInt(config);
+        thumb.copyPixelsToBuffer(buffer);
+        if (thumb != mThumb) thumb.recycle();
+        buffer.flip();
+
+        new Thread("ThumbnailStore") {
+            @Override
+            public void run() {
+                writeData(filePath, buffer);
+            }
+        }.start();
+        return true;
+    }
+
+    private static synchronized void writeData(String filePath,
+            ByteBuffer buffer) {
+        File file = new File(filePath);
+        File temp = new File(filePath + ".tmp");
         FileOutputStream f = null;
-        BufferedOutputStream b = null;
-        DataOutputStream d = null;
         try {
-            f = new FileOutputStream(filePath);
-            b = new BufferedOutputStream(f, BUFSIZE);
-            d = new DataOutputStream(b);
-            d.writeUTF(mUri.toString());
-            mThumb.compress(Bitmap.CompressFormat.PNG, 100, d);
-            d.close();
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) dir.mkdirs();
+            f = new FileOutputStream(temp);
+            FileChannel channel = f.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            f.close();
+            f = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "cannot rename " + temp);
+                temp.delete();
+            }
         } catch (IOException e) {
-            return false;
+            Log.w(TAG, "cannot write " + temp, e);
+            temp.delete();
         } finally {
             MenuHelper.closeSilently(f);
-            MenuHelper.closeSilently(b);
-            MenuHelper.closeSilently(d);
         }
-        return true;
+    }
+
+    /**
+     * A URI and its thumbnail, as read by {@link #readData(String)}.
+     */
+    public static class StoredData {
+        public final Uri mUri;
+        public final Bitmap mThumb;
+
+        StoredData(Uri uri, Bitmap thumb) {
+            mUri = uri;
+            mThumb = thumb;
+        }
     }
 
     // Loads the data from the specified file.
     // Returns true for success.
     public boolean loadData(String filePath) {
+        StoredData data = readData(filePath);
+        if (data == null) return false;
+        setData(data.mUri, data.mThumb);
+        // updateThumb() made its own copy.
+        BitmapPool.instance().put(data.mThumb);
+        return true;
+    }
+
+    // Reads the data stored in the specified file, without touching the
+    // button, so it can run on any thread. The thumbnail may come from the
+    // BitmapPool. Returns null for failure.
+    public static StoredData readData(String filePath) {
+        RandomAccessFile raf = null;
+        Bitmap thumb = null;
+        try {
+            raf = new RandomAccessFile(filePath, "r");
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.remaining() < 8 || buffer.getInt() != FILE_MAGIC
+                    || buffer.getInt() != FILE_VERSION) {
+                return readLegacyData(filePath);
+            }
+            byte[] uriBytes = new byte[buffer.getInt()];
+            buffer.get(uriBytes);
+            Uri uri = Uri.parse(new String(uriBytes, "UTF-8"));
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Bitmap.Config config = buffer.getInt() == CONFIG_RGB_565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            thumb = BitmapPool.instance().get(width, height, config);
+            if (buffer.remaining()
+                    != thumb.getRowBytes() * thumb.getHeight()) {
+                BitmapPool.instance().put(thumb);
+                return null;
+            }
+            thumb.copyPixelsFromBuffer(buffer);
+            return new StoredData(uri, thumb);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // A truncated or corrupt file.
+            Log.w(TAG, "cannot read " + filePath, e);
+            if (thumb != null) BitmapPool.instance().put(thumb);
+            return null;
+        } finally {
+            MenuHelper.closeSilently(raf);
+        }
+    }
+
+    // Reads a file written in the old format: the URI and a PNG.
+    private static StoredData readLegacyData(String filePath) {
         FileInputStream f = null;
         BufferedInputStream b = null;
         DataInputStream d = null;
@@ -128,16 +250,15 @@ public class ThumbnailController {
             d = new DataInputStream(b);
             Uri uri = Uri.parse(d.readUTF());
             Bitmap thumb = BitmapFactory.decodeStream(d);
-            setData(uri, thumb);
             d.close();
+            return new StoredData(uri, thumb);
         } catch (IOException e) {
-            return false;
+            return null;
         } finally {
             MenuHelper.closeSilently(f);
             MenuHelper.closeSilently(b);
             MenuHelper.closeSilently(d);
         }
-        return true;
     }
 
     public void updateDisplayIfNeeded(int duration) {
@@ -224,6 +345,7 @@ public class ThumbnailController {
      * Transform source Bitmap to targeted width and height.
      */
     public static final int OPTIONS_RECYCLE_INPUT = 0x2;
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
     private static Bitmap transform(Matrix scaler,
             Bitmap source,
             int targetWidth,
@@ -287,45 +409,43 @@ public class ThumbnailController {
             }
         }
 
-        Bitmap b1;
-        if (scaler != null) {
-            // this is used for minithumb and crop, so we want to filter here.
-            b1 = Bitmap.createBitmap(source, 0, 0,
-            source.getWidth(), source.getHeight(), scaler, true);
-        } else {
-            b1 = source;
-        }
+        // Scale and crop in one pass, straight into the target bitmap.
+        RectF scaled = new RectF(0, 0, bitmapWidthF, bitmapHeightF);
+        if (scaler != null) scaler.mapRect(scaled);
+        int dx1 = Math.max(0, Math.round(scaled.width()) - targetWidth);
+        int dy1 = Math.max(0, Math.round(scaled.height()) - targetHeight);
 
-        if (recycle && b1 != source) {
-            source.recycle();
+        Bitmap.Config config = source.getConfig();
+        if (config == null) config = Bitmap.Config.ARGB_8888;
+        Bitmap b2 = BitmapPool.instance().get(targetWidth, targetHeight, config);
+        if (scaled.width() < targetWidth || scaled.height() < targetHeight) {
+            b2.eraseColor(0);
         }
+        Canvas c = new Canvas(b2);
+        c.translate(-(dx1 / 2), -(dy1 / 2));
+        // this is used for minithumb and crop, so we want to filter here.
+        c.drawBitmap(source, scaler != null ? scaler : new Matrix(),
+                FILTER_PAINT);
 
-        int dx1 = Math.max(0, b1.getWidth() - targetWidth);
-        int dy1 = Math.max(0, b1.getHeight() - targetHeight);
-
-        Bitmap b2 = Bitmap.createBitmap(
-                b1,
-                dx1 / 2,
-                dy1 / 2,
-                targetWidth,
-                targetHeight);
-
-        if (b2 != b1) {
-            if (recycle || b1 != source) {
-                b1.recycle();
-            }
+        if (recycle) {
+            BitmapPool.instance().put(source);
         }
 
         return b2;
     }
     
     public boolean isUriValid() {
-        if (mUri == null) {
+        return isUriValid(mContentResolver, mUri);
+    }
+
+    // Returns true if the URI can be opened. Can run on any thread.
+    public static boolean isUriValid(ContentResolver resolver, Uri uri) {
+        if (uri == null) {
             return false;
         }
         try {
             ParcelFileDescriptor pfd =
-                    mContentResolver.openFileDescriptor(mUri, "r");
+                    resolver.openFileDescriptor(uri, "r");
             if (pfd == null) {
                 Log.e(TAG, "Fail to open URI.");
                 return false;
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+/**
+ * Decodes MediaStore thumbnails on a few worker threads, nearest to the
+ * visible positions first.
+ *
+ * <p>{@link #request} queues the thumbnail of an image or video at a
+ * position of a list and returns a {@link Request}, which is a
+ * {@code Future} of the bitmap. Asking again for an image which is queued
+ * or decoding returns the same request. Each time a worker is free it takes
+ * the queued request closest to the range given to
+ * {@link #setVisibleRange}; requests which fall out of that range (plus a
+ * margin) are cancelled. Cancelling a request which is being decoded calls
+ * {@code BitmapFactory.Options.requestCancelDecode()} and asks the
+ * MediaStore to stop making the thumbnail.
+ *
+ * <p>Unlike {@link BitmapManager}, the caller does not bring its own
+ * threads: there is one worker per core, up to {@link #MAX_WORKERS}.
+ */
+public class ThumbnailScheduler {
+    private static final String TAG = "ThumbnailScheduler";
+    private static final int MAX_WORKERS = 4;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_DECODING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread when the thumbnail is decoded, with null
+         * if it could not be. Not called for cancelled requests.
+         */
+        public void onThumbnailDecoded(Request request, Bitmap bitmap);
+    }
+
+    /**
+     * A queued thumbnail. All its state is guarded by the scheduler.
+     */
+    public class Request implements Future<Bitmap> {
+        private final long mId;
+        private final boolean mIsVideo;
+        private final BitmapFactory.Options mOptions =
+                new BitmapFactory.Options();
+        private final ArrayList<Listener> mListeners =
+                new ArrayList<Listener>(1);
+        private int mPosition;
+        private int mState = STATE_QUEUED;
+        private Bitmap mResult;
+
+        Request(long id, boolean isVideo, int position) {
+            mId = id;
+            mIsVideo = isVideo;
+            mPosition = position;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public boolean isVideo() {
+            return mIsVideo;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean decoding;
+            synchronized (ThumbnailScheduler.this) {
+                if (mState == STATE_DONE || mState == STATE_CANCELLED) {
+                    return false;
+                }
+                decoding = mState == STATE_DECODING;
+                if (!decoding) mQueue.remove(this);
+                mRequests.remove(key(mId, mIsVideo));
+                mState = STATE_CANCELLED;
+                ThumbnailScheduler.this.notifyAll();
+            }
+            if (decoding) {
+                // The worker finds the state when the decode returns and
+                // drops the bitmap.
+                mOptions.requestCancelDecode();
+                if (mIsVideo) {
+                    Video.Thumbnails.cancelThumbnailRequest(mResolver, mId);
+                } else {
+                    Images.Thumbnails.cancelThumbnailRequest(mResolver, mId);
+                }
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            synchronized (ThumbnailScheduler.this) {
+                return mState == STATE_CANCELLED;
+            }
+        }
+
+        public boolean isDone() {
+            synchronized (ThumbnailScheduler.this) {
+                return mState == STATE_DONE || mState == STATE_CANCELLED;
+            }
+        }
+
+        public Bitmap get() throws InterruptedException {
+            synchronized (ThumbnailScheduler.this) {
+                while (mState == STATE_QUEUED || mState == STATE_DECODING) {
+                    ThumbnailScheduler.this.wait();
+                }
+                if (mState == STATE_CANCELLED) {
+                    throw new CancellationException();
+                }
+                return mResult;
+            }
+        }
+
+        public Bitmap get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (ThumbnailScheduler.this) {
+                while (mState == STATE_QUEUED || mState == STATE_DECODING) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) throw new TimeoutException();
+                    TimeUnit.NANOSECONDS.timedWait(ThumbnailScheduler.this,
+                            left);
+                }
+                if (mState == STATE_CANCELLED) {
+                    throw new CancellationException();
+                }
+                return mResult;
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        Worker(int index) {
+            super("ThumbnailScheduler-" + index);
+            setPriority(Thread.MIN_PRIORITY);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Request r;
+                synchronized (ThumbnailScheduler.this) {
+                    while (!mShutdown && mQueue.isEmpty()) {
+                        try {
+                            ThumbnailScheduler.this.wait();
+                        } catch (InterruptedException e) {
+                            // Check mShutdown again.
+                        }
+                    }
+                    if (mShutdown) return;
+                    r = takeNearest();
+                    r.mState = STATE_DECODING;
+                }
+                decode(r);
+            }
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mKind;
+    private final int mWorkerCount;
+    private final ArrayList<Worker> mWorkers = new ArrayList<Worker>();
+
+    // The queued and decoding requests, by key().
+    private final HashMap<Long, Request> mRequests =
+            new HashMap<Long, Request>();
+    // The queued requests, in no order; takeNearest() picks from them.
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    private int mFirstVisible;
+    private int mLastVisible = Integer.MAX_VALUE;
+    private boolean mShutdown;
+
+    /**
+     * @param kind {@code Images.Thumbnails.MICRO_KIND} or
+     *     {@code Images.Thumbnails.MINI_KIND}.
+     */
+    public ThumbnailScheduler(ContentResolver resolver, int kind) {
+        mResolver = resolver;
+        mKind = kind;
+        mWorkerCount = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Queues the thumbnail of an image or video id, shown at the given
+     * position. The listener may be null.
+     */
+    public synchronized Request request(long id, boolean isVideo,
+            int position, Listener listener) {
+        if (mShutdown) throw new IllegalStateException("shut down");
+        Long key = key(id, isVideo);
+        Request r = mRequests.get(key);
+        if (r == null) {
+            r = new Request(id, isVideo, position);
+            mRequests.put(key, r);
+            mQueue.add(r);
+            if (mWorkers.size() < mWorkerCount) {
+                Worker w = new Worker(mWorkers.size());
+                mWorkers.add(w);
+                w.start();
+            }
+            notifyAll();
+        } else if (distance(position) < distance(r.mPosition)) {
+            r.mPosition = position;
+        }
+        if (listener != null) r.mListeners.add(listener);
+        return r;
+    }
+
+    /**
+     * Sets the positions on screen. Requests more than {@code margin}
+     * positions away are cancelled.
+     */
+    public void setVisibleRange(int first, int last, int margin) {
+        ArrayList<Request> stale = new ArrayList<Request>();
+        synchronized (this) {
+            mFirstVisible = first;
+            mLastVisible = last;
+            for (Request r : mRequests.values()) {
+                if (distance(r.mPosition) > margin) stale.add(r);
+            }
+        }
+        for (Request r : stale) {
+            r.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels every request and stops the workers. The scheduler cannot be
+     * used afterwards.
+     */
+    public void shutdown() {
+        ArrayList<Request> all;
+        synchronized (this) {
+            mShutdown = true;
+            all = new ArrayList<Request>(mRequests.values());
+            notifyAll();
+        }
+        for (Request r : all) {
+            r.cancel(true);
+        }
+    }
+
+    private static Long key(long id, boolean isVideo) {
+        // Image and video ids come from different tables.
+        return isVideo ? ~id : id;
+    }
+
+    // Returns how many positions the given one is away from the visible
+    // range.
+    private int distance(int position) {
+        if (position < mFirstVisible) return mFirstVisible - position;
+        if (position > mLastVisible) return position - mLastVisible;
+        return 0;
+    }
+
+    private Request takeNearest() {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0, n = mQueue.size(); i < n; i++) {
+            int d = distance(mQueue.get(i).mPosition);
+            if (d < bestDistance) {
+                best = i;
+                bestDistance = d;
+            }
+        }
+        // Move the last one into the gap; the queue has no order anyway.
+        Request r = mQueue.get(best);
+        int last = mQueue.size() - 1;
+        mQueue.set(best, mQueue.get(last));
+        mQueue.remove(last);
+        return r;
+    }
+
+    private void decode(Request r) {
+        Bitmap b = null;
+        try {
+            b = r.mIsVideo
+                    ? Video.Thumbnails.getThumbnail(mResolver, r.mId, mKind,
+                            r.mOptions)
+                    : Images.Thumbnails.getThumbnail(mResolver, r.mId, mKind,
+                            r.mOptions);
+        } catch (Throwable ex) {
+            Log.e(TAG, "Failed to decode thumbnail " + r.mId, ex);
+        }
+
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            if (r.mState == STATE_CANCELLED) {
+                // No one wants it any more.
+                BitmapPool.instance().put(b);
+                return;
+            }
+            mRequests.remove(key(r.mId, r.mIsVideo));
+            r.mState = STATE_DONE;
+            r.mResult = b;
+            listeners = new ArrayList<Listener>(r.mListeners);
+            notifyAll();
+        }
+        for (Listener l : listeners) {
+            l.onThumbnailDecoded(r, b);
+        }
+    }
+}
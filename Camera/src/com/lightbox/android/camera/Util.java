@@ -23,7 +23,10 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.os.Build;
 import android.util.FloatMath;
@@ -50,14 +53,21 @@ public class Util {
     private Util() {
     }
 
+    // Created on first use, so the pure Java helpers like decodeYUV() can be
+    // run on a desktop JVM.
+    private static class FilterPaintHolder {
+        static final Paint sPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
     // Rotates the bitmap by the specified degree.
-    // If a new bitmap is created, the original bitmap is recycled.
+    // If a new bitmap is created, the original bitmap is given back to the
+    // BitmapPool.
     public static Bitmap rotate(Bitmap b, int degrees) {
         return rotateAndMirror(b, degrees, false);
     }
 
     // Rotates and/or mirrors the bitmap. If a new bitmap is created, the
-    // original bitmap is recycled.
+    // original bitmap is given back to the BitmapPool.
     public static Bitmap rotateAndMirror(Bitmap b, int degrees, boolean mirror) {
         if ((degrees != 0 || mirror) && b != null) {
             Matrix m = new Matrix();
@@ -76,12 +86,9 @@ public class Util {
             }
 
             try {
-                Bitmap b2 = Bitmap.createBitmap(
-                        b, 0, 0, b.getWidth(), b.getHeight(), m, true);
-                if (b != b2) {
-                    b.recycle();
-                    b = b2;
-                }
+                Bitmap b2 = transform(b, m);
+                BitmapPool.instance().put(b);
+                b = b2;
             } catch (OutOfMemoryError ex) {
                 // We have no memory to rotate. Return the original bitmap.
             }
@@ -90,19 +97,30 @@ public class Util {
     }
     
     public static Bitmap flipHorizontally(Bitmap b) {
-    	Matrix m = new Matrix();
-    	m.postScale(-1, 1);
-    	try {
-            Bitmap b2 = Bitmap.createBitmap(
-                    b, 0, 0, b.getWidth(), b.getHeight(), m, true);
-            if (b != b2) {
-                b.recycle();
-                b = b2;
-            }
-        } catch (OutOfMemoryError ex) {
-            // We have no memory to rotate. Return the original bitmap.
+        return rotateAndMirror(b, 0, true);
+    }
+
+    // Draws the bitmap transformed by the matrix into a pooled bitmap just
+    // large enough to hold the result.
+    private static Bitmap transform(Bitmap b, Matrix m) {
+        RectF bounds = new RectF(0, 0, b.getWidth(), b.getHeight());
+        m.mapRect(bounds);
+        int width = Math.round(bounds.width());
+        int height = Math.round(bounds.height());
+        boolean rectStaysRect = m.rectStaysRect();
+        Bitmap.Config config = b.getConfig();
+        if (config == null || !rectStaysRect) {
+            // The corners of a tilted bitmap must be transparent.
+            config = Bitmap.Config.ARGB_8888;
         }
-    	return b;
+
+        Bitmap b2 = BitmapPool.instance().get(width, height, config);
+        if (!rectStaysRect) b2.eraseColor(0);
+        Canvas canvas = new Canvas(b2);
+        canvas.translate(-bounds.left, -bounds.top);
+        canvas.concat(m);
+        canvas.drawBitmap(b, 0, 0, FilterPaintHolder.sPaint);
+        return b2;
     }
 
     /*
@@ -210,6 +228,74 @@ public class Util {
         }
     }
 
+    // Decodes the image file, subsampled so that its shorter side is still at
+    // least minSideLength. Only the bounds are read to pick the sample size.
+    public static Bitmap makeBitmap(String path, int minSideLength) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (options.mCancel || options.outWidth <= 0
+                    || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = computeSampleSize(
+                    options, minSideLength, IImage.UNCONSTRAINED);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError ex) {
+            Log.e(TAG, "Got oom exception ", ex);
+            return null;
+        }
+    }
+
+    // Returns the thumbnail embedded in the EXIF data of the jpeg. If there
+    // is none, decodes the whole jpeg with the given sample size instead.
+    // The result is not rotated, and may come from the BitmapPool.
+    public static Bitmap makeThumbnail(byte[] jpegData, int fallbackSampleSize) {
+        try {
+            ExifParser exif = ExifParser.parse(jpegData);
+            if (exif != null) {
+                int offset = exif.getThumbnailOffset();
+                if (offset >= 0) {
+                    Bitmap thumb = decodePooled(jpegData, offset,
+                            exif.getThumbnailLength());
+                    if (thumb != null) return thumb;
+                }
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = fallbackSampleSize;
+            return BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length,
+                    options);
+        } catch (OutOfMemoryError ex) {
+            Log.e(TAG, "Got oom exception ", ex);
+            return null;
+        }
+    }
+
+    // Decodes the jpeg into a bitmap from the BitmapPool if there is one of
+    // the right size and the platform allows it.
+    private static Bitmap decodePooled(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        options.inJustDecodeBounds = false;
+
+        if (BitmapPool.instance().setInBitmap(
+                options, options.outWidth, options.outHeight)) {
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length,
+                        options);
+            } catch (IllegalArgumentException ex) {
+                // The decoder could not reuse the bitmap.
+                BitmapPool.instance().put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
     public static void Assert(boolean cond) {
         if (!cond) {
             throw new AssertionError();
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts NV21 preview frames to ARGB pixels.
+ *
+ * <p>The output is identical, pixel for pixel, to
+ * {@link Util#decodeYUV(int[], byte[], int, int)}, which remains the
+ * reference implementation. The per-sample sign corrections and
+ * fixed-point products are read from lookup tables built once, and the
+ * clamping to [0, 255] is done without branches.
+ *
+ * <p>{@link #convertScaled} converts a frame straight to a smaller size,
+ * reading only the samples it needs and optionally mirroring the image in
+ * the same pass.
+ *
+ * <p>A converter created with more than one thread splits the rows of a
+ * full size frame into bands and converts them in parallel.
+ * {@link #release()} must be called when such a converter is no longer
+ * needed. This class does not depend on the Android framework.
+ */
+public class YuvConverter {
+    // Frames with fewer rows than this are not worth splitting.
+    private static final int MIN_ROWS_PER_BAND = 32;
+    private static final int MAX_THREADS = 4;
+
+    // Luma of an unsigned sample, with the same sign correction as decodeYUV.
+    private static final int[] Y_TABLE = new int[256];
+    // Contributions of the two chroma samples of a pixel pair. As in
+    // decodeYUV, the first byte of the pair is named Cb and the second Cr.
+    private static final int[] R_CR = new int[256];
+    private static final int[] G_CB = new int[256];
+    private static final int[] G_CR = new int[256];
+    private static final int[] B_CB = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int s = (byte) i;
+            Y_TABLE[i] = s < 0 ? s + 255 : s;
+            int c = s < 0 ? s + 127 : s - 128;
+            R_CR[i] = c + (c >> 2) + (c >> 3) + (c >> 5);
+            G_CB[i] = -(c >> 2) + (c >> 4) + (c >> 5);
+            G_CR[i] = -(c >> 1) + (c >> 3) + (c >> 4) + (c >> 5);
+            B_CB[i] = c + (c >> 1) + (c >> 2) + (c >> 6);
+        }
+    }
+
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a converter which uses up to {@code threads} threads per
+     * frame, including the calling thread.
+     */
+    public YuvConverter(int threads) {
+        mThreads = Math.max(1, Math.min(threads, MAX_THREADS));
+        if (mThreads > 1) {
+            mExecutor = Executors.newFixedThreadPool(mThreads - 1,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "YuvConverter");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    // Returns a thread count suited to this device.
+    public static int getDefaultThreadCount() {
+        return Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_THREADS);
+    }
+
+    /**
+     * Converts an NV21 frame. {@code out} is reused if it can hold
+     * {@code width * height} pixels, otherwise a new array is allocated.
+     * Returns the array holding the pixels.
+     */
+    public int[] convert(byte[] nv21, int width, int height, int[] out) {
+        if (nv21 == null) {
+            throw new NullPointerException("buffer 'nv21' is null");
+        }
+        int size = width * height;
+        int required = requiredLength(width, height);
+        if (nv21.length < required) {
+            throw new IllegalArgumentException("buffer nv21 size "
+                    + nv21.length + " < minimum " + required);
+        }
+        if (out == null || out.length < size) {
+            out = new int[size];
+        }
+
+        int bands = Math.min(mThreads, height / MIN_ROWS_PER_BAND);
+        if (bands <= 1) {
+            convertRows(nv21, width, height, out, 0, height);
+            return out;
+        }
+
+        // Bands start on even rows, so each band begins a chroma row.
+        int rowsPerBand = ((height + bands - 1) / bands + 1) & ~1;
+        CountDownLatch done = new CountDownLatch(bands - 1);
+        int top = 0;
+        for (int i = 0; i < bands - 1; i++) {
+            mExecutor.execute(new Band(nv21, width, height, out, top,
+                    top + rowsPerBand, done));
+            top += rowsPerBand;
+        }
+        // The calling thread takes the last band.
+        convertRows(nv21, width, height, out, top, height);
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            // Don't return a half converted frame.
+            convertRows(nv21, width, height, out, 0, top);
+            Thread.currentThread().interrupt();
+        }
+        return out;
+    }
+
+    /**
+     * Returns the largest sample size which keeps a frame of the given width
+     * at least {@code targetWidth} pixels wide.
+     */
+    public static int computeSampleSize(int width, int targetWidth) {
+        if (targetWidth <= 0) return 1;
+        return Math.max(1, width / targetWidth);
+    }
+
+    // Returns the width or height of a frame converted with the given sample
+    // size.
+    public static int scaledLength(int length, int sampleSize) {
+        return length / sampleSize;
+    }
+
+    /**
+     * Converts an NV21 frame to a frame {@code sampleSize} times smaller in
+     * each dimension, keeping every {@code sampleSize}-th pixel of every
+     * {@code sampleSize}-th row. If {@code mirror} is true the result is
+     * flipped horizontally. Each pixel is identical to the corresponding
+     * pixel of {@link #convert}. {@code out} is reused if it is large
+     * enough. The work is small, so it is always done on the calling thread.
+     */
+    public int[] convertScaled(byte[] nv21, int width, int height,
+            int sampleSize, boolean mirror, int[] out) {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("sampleSize " + sampleSize);
+        }
+        if (sampleSize == 1 && !mirror) {
+            return convert(nv21, width, height, out);
+        }
+        if (nv21 == null) {
+            throw new NullPointerException("buffer 'nv21' is null");
+        }
+        int required = requiredLength(width, height);
+        if (nv21.length < required) {
+            throw new IllegalArgumentException("buffer nv21 size "
+                    + nv21.length + " < minimum " + required);
+        }
+        int dstWidth = scaledLength(width, sampleSize);
+        int dstHeight = scaledLength(height, sampleSize);
+        if (out == null || out.length < dstWidth * dstHeight) {
+            out = new int[dstWidth * dstHeight];
+        }
+
+        final int[] yTable = Y_TABLE;
+        final int[] rCr = R_CR;
+        final int[] gCb = G_CB;
+        final int[] gCr = G_CR;
+        final int[] bCb = B_CB;
+        final int size = width * height;
+        // Source column of the first output pixel of a row, and the step.
+        final int x0 = mirror ? (dstWidth - 1) * sampleSize : 0;
+        final int dx = mirror ? -sampleSize : sampleSize;
+
+        int dst = 0;
+        for (int j = 0; j < dstHeight; j++) {
+            int sy = j * sampleSize;
+            int yRow = sy * width;
+            int cRow = size + (sy >> 1) * width;
+            for (int i = 0, sx = x0; i < dstWidth; i++, sx += dx) {
+                int c = cRow + (sx & ~1);
+                int cb = nv21[c] & 0xFF;
+                int cr = nv21[c + 1] & 0xFF;
+                int y = yTable[nv21[yRow + sx] & 0xFF];
+                out[dst++] = pack(y + rCr[cr], y + gCb[cb] + gCr[cr],
+                        y + bCb[cb]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Stops the worker threads. The converter must not be used afterwards.
+     */
+    public void release() {
+        if (mExecutor != null) mExecutor.shutdown();
+    }
+
+    // The minimum NV21 buffer size for the given dimensions.
+    static int requiredLength(int width, int height) {
+        if (width <= 0 || height <= 0) return 0;
+        return width * height + ((height - 1) >> 1) * width
+                + ((width - 1) >> 1) * 2 + 2;
+    }
+
+    private static void convertRows(byte[] nv21, int width, int height,
+            int[] out, int top, int bottom) {
+        final int[] yTable = Y_TABLE;
+        final int[] rCr = R_CR;
+        final int[] gCb = G_CB;
+        final int[] gCr = G_CR;
+        final int[] bCb = B_CB;
+        final int size = width * height;
+
+        for (int j = top; j < bottom; j++) {
+            int pix = j * width;
+            int c = size + (j >> 1) * width;
+            final int rowEnd = pix + width;
+            while (pix < rowEnd) {
+                int cb = nv21[c++] & 0xFF;
+                int cr = nv21[c++] & 0xFF;
+                int dr = rCr[cr];
+                int dg = gCb[cb] + gCr[cr];
+                int db = bCb[cb];
+
+                int y = yTable[nv21[pix] & 0xFF];
+                out[pix] = pack(y + dr, y + dg, y + db);
+                if (++pix == rowEnd) break;
+                y = yTable[nv21[pix] & 0xFF];
+                out[pix] = pack(y + dr, y + dg, y + db);
+                pix++;
+            }
+        }
+    }
+
+    // Packs the clamped components the same way as decodeYUV, which stores
+    // red in the low byte.
+    private static int pack(int r, int g, int b) {
+        return 0xff000000 | (clamp(b) << 16) | (clamp(g) << 8) | clamp(r);
+    }
+
+    private static int clamp(int x) {
+        x &= ~(x >> 31);            // Negative values become 0.
+        x |= (255 - x) >> 31;       // Values above 255 become -1...
+        return x & 0xFF;            // ...and then 255.
+    }
+
+    private static class Band implements Runnable {
+        private final byte[] mData;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mOut;
+        private final int mTop;
+        private final int mBottom;
+        private final CountDownLatch mDone;
+
+        Band(byte[] data, int width, int height, int[] out, int top,
+                int bottom, CountDownLatch done) {
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mOut = out;
+            mTop = top;
+            mBottom = bottom;
+            mDone = done;
+        }
+
+        public void run() {
+            try {
+                convertRows(mData, mWidth, mHeight, mOut, mTop, mBottom);
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+}
@@ -17,15 +17,20 @@
 package com.lightbox.android.camera.activities;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
@@ -44,12 +49,13 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.ImageFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
-import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
+import android.location.Location;
 import android.media.AudioManager;
 import android.media.CameraProfile;
 import android.media.ToneGenerator;
@@ -61,6 +67,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.provider.Settings;
@@ -90,13 +97,19 @@ import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 
+import com.lightbox.android.camera.BitmapPool;
 import com.lightbox.android.camera.CameraApplication;
 import com.lightbox.android.camera.CameraApplication.OrientationChangeListener;
 import com.lightbox.android.camera.CameraHardwareException;
 import com.lightbox.android.camera.CameraSettings;
+import com.lightbox.android.camera.CaptureLatencyTracker;
 import com.lightbox.android.camera.ComboPreferences;
+import com.lightbox.android.camera.ExifParser;
+import com.lightbox.android.camera.FileNameGenerator;
 import com.lightbox.android.camera.FocusRectangle;
 import com.lightbox.android.camera.ImageManager;
+import com.lightbox.android.camera.ImageSaver;
+import com.lightbox.android.camera.JpegWriter;
 import com.lightbox.android.camera.MenuHelper;
 import com.lightbox.android.camera.NoSearchActivity;
 import com.lightbox.android.camera.OnScreenHint;
@@ -105,10 +118,15 @@ import com.lightbox.android.camera.PreviewFrameLayout;
 import com.lightbox.android.camera.R;
 import com.lightbox.android.camera.RotateImageView;
 import com.lightbox.android.camera.ShutterButton;
+import com.lightbox.android.camera.StorageBudget;
+import com.lightbox.android.camera.StorageState;
 import com.lightbox.android.camera.Switcher;
 import com.lightbox.android.camera.ThumbnailController;
 import com.lightbox.android.camera.Util;
+import com.lightbox.android.camera.YuvConverter;
 import com.lightbox.android.camera.device.CameraHolder;
+import com.lightbox.android.camera.device.PreviewBufferPool;
+import com.lightbox.android.camera.device.ZslFrameRing;
 import com.lightbox.android.camera.ui.CameraHeadUpDisplay;
 import com.lightbox.android.camera.ui.GLRootView;
 import com.lightbox.android.camera.ui.HeadUpDisplay;
@@ -126,6 +144,44 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     private static final int RESTART_PREVIEW = 3;
     private static final int CLEAR_SCREEN_DELAY = 4;
     private static final int SET_CAMERA_PARAMETERS_WHEN_IDLE = 5;
+    private static final int CONTINUE_BURST = 6;
+
+    // While a burst waits for the image saver to make room, it retries after
+    // this delay.
+    private static final int BURST_RETRY_DELAY = 50;
+
+    // The preview frame shown by the capture animation is converted at about
+    // this width; it only needs to look right while shrinking to the
+    // thumbnail.
+    private static final int PREVIEW_ANIMATION_WIDTH = 320;
+
+    // The number of buffers in mPreviewBufferPool.
+    private static final int PREVIEW_BUFFER_COUNT = 2;
+
+    // In zero shutter lag mode, the number of preview frames kept, and how
+    // far in ms from the shutter press a frame may be to be used.
+    private static final int ZSL_FRAME_COUNT = 3;
+    private static final int ZSL_MAX_FRAME_DISTANCE = 300;
+    // Encodes the zero shutter lag pictures, one after the other. It lives
+    // as long as the process, like the other camera worker threads.
+    private static final ExecutorService sZslEncoder =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ZslEncoder");
+                }
+            });
+    // Decodes the thumbnails of the JPEGs for the capture animation, so the
+    // JPEG callback does not wait for them.
+    private static final ExecutorService sThumbDecoder =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ThumbDecoder");
+                }
+            });
+
+    // How hard to try to get pictures onto the storage before reporting
+    // them saved. See JpegWriter.
+    private static final int JPEG_SYNC_POLICY = JpegWriter.SYNC_NONE;
 
     // The subset of parameters we need to update in setCameraParameters().
     private static final int UPDATE_PARAM_INITIALIZE = 1;
@@ -190,12 +246,25 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     private ImageView mFlashButton;
     private ImageView mCameraTypeButton;
     private ThumbnailController mThumbController;
+    // The last thumbnail is loaded by a ThumbnailLoader. Results of older
+    // loaders are dropped, and a result which comes before mThumbController
+    // exists is kept in mPendingThumbnail until it does.
+    private int mThumbnailLoadGeneration;
+    private ThumbnailLoader mPendingThumbnail;
 
     // mCropValue and mSaveUri are used only if isImageCaptureIntent() is true.
     private String mCropValue;
     private Uri mSaveUri;
 
     private ImageCapture mImageCapture = null;
+    // Writes captured pictures in the background. Non-null only between
+    // onResume() and onPause(), and only if isImageCaptureIntent() is false.
+    private ImageSaver mImageSaver;
+    // Converts the preview frame used by the capture animation. Non-null only
+    // between onResume() and onPause().
+    private YuvConverter mYuvConverter;
+    // Reused by animatePreviewToThumb() for the converted preview frame.
+    private int[] mPreviewPixels;
 
     private boolean mPreviewing;
     private boolean mPausing;
@@ -219,7 +288,21 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             new RawPictureCallback();
     private final AutoFocusCallback mAutoFocusCallback =
             new AutoFocusCallback();
-    private final PreviewFrameCallback mPreviewFrameCallback = new PreviewFrameCallback();
+    // Preallocated preview frame buffers, or null before API level 8.
+    private final PreviewBufferPool mPreviewBufferPool =
+            PreviewBufferPool.isSupported()
+                    ? new PreviewBufferPool(PREVIEW_BUFFER_COUNT) : null;
+    // The last preview frames, in zero shutter lag mode only.
+    private ZslFrameRing mZslRing;
+    // SystemClock.uptimeMillis() of the last shutter press not yet snapped,
+    // or 0.
+    private long mShutterPressTime;
+    // The rotation and location last written into mParameters for the
+    // pictures. See updateCaptureParameters().
+    private int mAppliedRotation = -1;
+    private Location mAppliedLocation;
+    private final ImageSavedListener mImageSavedListener =
+            new ImageSavedListener();
     private final ZoomListener mZoomListener = (Build.VERSION.SDK_INT >= 0x00000008) ? new ZoomListener() : null;
     // Use the ErrorCallback to capture the crash count
     // on the mediaserver
@@ -232,7 +315,10 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     private long mPostViewPictureCallbackTime;
     private long mRawPictureCallbackTime;
     private long mJpegPictureCallbackTime;
+    private long mTakePictureTime;
     private int mPicturesRemaining;
+    private StorageBudget mStorageBudget;
+    private FileNameGenerator mFileNameGenerator;
 
     // These latency time are for the CameraLatency test.
     public long mAutoFocusTime;
@@ -240,6 +326,12 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     public long mShutterToPictureDisplayedTime;
     public long mPictureDisplayedToJpegCallbackTime;
     public long mJpegCallbackFinishTime;
+    // Latency histograms of every capture stage, kept across sessions.
+    private CaptureLatencyTracker mLatencyTracker;
+    private static final String LATENCY_STATE_FILE = "capture_latency";
+    private static final String LATENCY_REPORT_FILE = "capture_latency.txt";
+    // Sustained rate of the last burst, in shots per second.
+    public float mBurstShotsPerSecond;
 
     // Add for test
     public static boolean mMediaServerDied = false;
@@ -294,6 +386,13 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                     setCameraParametersWhenIdle(0);
                     break;
                 }
+
+                case CONTINUE_BURST: {
+                    if (mImageCapture != null) {
+                        mImageCapture.takeNextBurstPicture();
+                    }
+                    break;
+                }
             }
         }
     }
@@ -352,13 +451,11 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             
             mThumbController = new ThumbnailController(
                     getResources(), mLastPictureButton, mContentResolver);
-            //mThumbController.loadData(ImageManager.getLastImageThumbPath());
-            String lastPhotoThumbPath = getLastPhotoThumbPath();
-            if (lastPhotoThumbPath != null) {
-            	mThumbController.loadData(lastPhotoThumbPath);
-			}
-            // Update last image thumbnail.
-            updateThumbnailButton();
+            // The last image thumbnail is being loaded since onCreate.
+            if (mPendingThumbnail != null) {
+                mPendingThumbnail.apply();
+                mPendingThumbnail = null;
+            }
         //}
 
         // Initialize shutter button.
@@ -400,8 +497,8 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     	}
     }
     
-    private String getLastPhotoThumbPath() {
-    	//TODO if launched from lightbox
+    // Returns the most recent photo of the Lightbox app if it launched us.
+    private String getLightboxPhotoPath() {
     	if (mIsLightboxPhotosIntent) {
     		String path = getIntent().getStringExtra("com.lightbox.android.photos.activities.TakePhotoActivity.mostRecentPhotoPath");
     		if (path != null && path.length() > 0) {
@@ -411,8 +508,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     			}
     		}
     	}
-        
-        return ImageManager.getLastImageThumbPath();
+    	return null;
     }
     
     private void addIdleHandler() {
@@ -427,10 +523,86 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 
     private void updateThumbnailButton() {
         // Update last image if URI is invalid and the storage is ready.
-        if (!mThumbController.isUriValid() && mPicturesRemaining >= 0) {
-            updateLastImage();
+        new ThumbnailLoader(false, mThumbController.getUri()).start();
+    }
+
+    /**
+     * Finds the thumbnail for the last picture button off the main thread.
+     * It checks that the URI is still valid (which opens the file) and, if
+     * not, decodes the last photo, subsampled to the size of the button.
+     * The result is posted back to the main thread.
+     */
+    private class ThumbnailLoader extends Thread {
+        private final int mGeneration = ++mThumbnailLoadGeneration;
+        private final boolean mReadCache;
+        private String mPhotoPath;
+        private final int mMinSideLength;
+        private final ContentResolver mResolver = getContentResolver();
+        private Uri mUri;
+        private Bitmap mThumb;
+        private boolean mChanged;
+
+        // If readCache is true, starts from the thumbnail cache file,
+        // otherwise from the uri currently shown.
+        ThumbnailLoader(boolean readCache, Uri uri) {
+            super("ThumbnailLoader");
+            mReadCache = readCache;
+            mUri = uri;
+            View button = findViewById(R.id.review_thumbnail);
+            ViewGroup.LayoutParams param = button.getLayoutParams();
+            mMinSideLength = Math.min(
+                    param.width - button.getPaddingLeft()
+                            - button.getPaddingRight(),
+                    param.height - button.getPaddingTop()
+                            - button.getPaddingBottom());
+        }
+
+        @Override
+        public void run() {
+            mPhotoPath = getLightboxPhotoPath();
+            if (mReadCache && mPhotoPath == null) {
+                ThumbnailController.StoredData data =
+                        ThumbnailController.readData(
+                                ImageManager.getLastImageThumbPath());
+                if (data != null) {
+                    mUri = data.mUri;
+                    mThumb = data.mThumb;
+                    mChanged = true;
+                }
+            }
+            if (!ThumbnailController.isUriValid(mResolver, mUri)
+                    && ImageManager.hasStorage()) {
+                BitmapPool.instance().put(mThumb);
+                mThumb = null;
+                mUri = null;
+                mChanged = true;
+                if (mPhotoPath != null) {
+                    mThumb = Util.makeBitmap(mPhotoPath, mMinSideLength);
+                    mUri = Uri.fromFile(new File(mPhotoPath));
+                }
+            }
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mGeneration != mThumbnailLoadGeneration) {
+                        BitmapPool.instance().put(mThumb);
+                    } else if (mThumbController == null) {
+                        mPendingThumbnail = ThumbnailLoader.this;
+                    } else {
+                        apply();
+                    }
+                }
+            });
+        }
+
+        // Called on the main thread once mThumbController exists.
+        void apply() {
+            if (mChanged) {
+                mThumbController.setData(mUri, mThumb);
+                // The controller keeps its own scaled copy.
+                BitmapPool.instance().put(mThumb);
+            }
+            mThumbController.updateDisplayIfNeeded(500);
         }
-        mThumbController.updateDisplayIfNeeded(500);
     }
 
     // If the activity is paused and resumed, this method will be called in
@@ -554,8 +726,10 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
+            StorageState.onMediaAction(action);
             if (action.equals(Intent.ACTION_MEDIA_MOUNTED)
                     || action.equals(Intent.ACTION_MEDIA_UNMOUNTED)
+                    || action.equals(Intent.ACTION_MEDIA_EJECT)
                     || action.equals(Intent.ACTION_MEDIA_CHECKING)) {
                 checkStorage();
             } else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
@@ -573,6 +747,8 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             mShutterCallbackTime = System.currentTimeMillis();
             mShutterLag = mShutterCallbackTime - mCaptureStartTime;
             Log.v(TAG, "mShutterLag = " + mShutterLag + "ms");
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_SHUTTER,
+                    mShutterCallbackTime - mTakePictureTime);
             clearFocusState();
         }
     }
@@ -584,6 +760,8 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             Log.v(TAG, "mShutterToPostViewCallbackTime = "
                     + (mPostViewPictureCallbackTime - mShutterCallbackTime)
                     + "ms");
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_POSTVIEW,
+                    mPostViewPictureCallbackTime - mShutterCallbackTime);
         }
     }
 
@@ -613,6 +791,8 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 
         	
             mJpegPictureCallbackTime = System.currentTimeMillis();
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_JPEG_CALLBACK,
+                    mJpegPictureCallbackTime - mShutterCallbackTime);
             
             // If postview callback has arrived, the captured image is displayed
             // in postview callback. If not, the captured image is displayed in
@@ -632,7 +812,10 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                     + mPictureDisplayedToJpegCallbackTime + "ms");
             mHeadUpDisplay.setEnabled(true);
 
-            if (!mIsImageCaptureIntent) {
+            // During a burst the preview is restarted right away, without
+            // showing the taken picture, and the next picture is requested.
+            boolean burst = mImageCapture.isBurstActive();
+            if (!mIsImageCaptureIntent && !burst) {
                 // We want to show the taken picture for a while, so we wait
                 // for at least 1.2 second before restarting the preview.
                 long delay = ((CameraHolder.instance().isFrontFacing(mCameraId)) ? 1200 : 400) - mPictureDisplayedToJpegCallbackTime;
@@ -642,12 +825,21 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                     mHandler.sendEmptyMessageDelayed(RESTART_PREVIEW, delay);
                 }
             }
+            if (mDoAnimation) {
+                animateJpegToThumb(jpegData);
+            }
             mImageCapture.storeImage(jpegData, camera);
-            
+
             // Calculate this in advance of each shot so we don't add to shutter
             // latency. It's true that someone else could write to the SD card in
             // the mean time and fill it, but that could have happened between the
-            // shutter press and saving the JPEG too.
+            // shutter press and saving the JPEG too. The budget only goes to
+            // the file system now and then; otherwise it subtracts this picture
+            // from its last figure. The picture of an IMAGE_CAPTURE intent goes
+            // back to the caller and takes no storage.
+            if (!mIsImageCaptureIntent) {
+                mStorageBudget.onPictureTaken(jpegData.length);
+            }
             calculatePicturesRemaining();
 
             if (mPicturesRemaining < 1) {
@@ -665,29 +857,45 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             if (mIsImageCaptureIntent) {
             	doAttach();
             }
-            
-            if (mAnimationDone) {
-            	Log.d(TAG, "BUG: updating after capture");
-            	mThumbController.updateDisplayIfNeeded(0);
+
+            if (burst) {
+                mImageCapture.continueBurst();
             }
         }
     }
 
-    private byte[] mPreviewData;
-    private final class PreviewFrameCallback implements PreviewCallback {
-    	public PreviewFrameCallback() {}
-    	
-		@Override
-		public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
-			Log.d(TAG, "onPreviewFrame");
-			
-            mImageCapture.capture();
-            if (!isPreviewAnimationDisable()) {
-            	animatePreviewToThumb(data);
+    private final class ImageSavedListener implements ImageSaver.Listener {
+        public void onImageSaved(ImageSaver.SaveRequest request) {
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_FILE_WRITE,
+                    request.mWriteLatency);
+            if (request.mUri != null) {
+                mLatencyTracker.record(
+                        CaptureLatencyTracker.STAGE_MEDIA_INSERT,
+                        request.mInsertLatency);
             }
-		}
-    	
+            if (mImageCapture != null) {
+                mImageCapture.onImageSaved(request);
+            }
+            sendBroadcast(new Intent(
+                    "com.android.camera.NEW_PICTURE", request.mUri));
+            // Burst pictures after the first one are not animated, so the
+            // bitmap must follow the uri here too.
+            if (isPreviewAnimationDisable() || !request.mAnimated) {
+                setLastPictureThumb(request.mData, request.mDegree,
+                        request.mUri);
+                mThumbController.updateDisplayIfNeeded(500);
+            } else {
+                mThumbController.setUri(request.mUri);
+            }
+
+            if (mAnimationDone) {
+                Log.d(TAG, "BUG: updating after capture");
+                mThumbController.updateDisplayIfNeeded(0);
+            }
+        }
     }
+
+    private byte[] mPreviewData;
     
     private Bitmap loadPreviewBitmap(byte[] jpegData, int degree) {
     	//TODO use preview, so rotation is always correct?
@@ -719,6 +927,8 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             mFocusCallbackTime = System.currentTimeMillis();
             mAutoFocusTime = mFocusCallbackTime - mFocusStartTime;
             Log.v(TAG, "mAutoFocusTime = " + mAutoFocusTime + "ms");
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_FOCUS,
+                    mAutoFocusTime);
             if (mFocusState == FOCUSING_SNAP_ON_FINISH) {
                 // Take the picture no matter focus succeeds or fails. No need
                 // to play the AF sound if we're about to play the shutter
@@ -789,47 +999,33 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 
         byte[] mCaptureOnlyData;
 
-        // Returns the rotation degree in the jpeg header.
-        private int storeImage(byte[] data) {
-            try {
-                long dateTaken = System.currentTimeMillis();
-                String title = createName(dateTaken);
-                String filename = title + ".jpg";
-                int[] degree = new int[1];
-                mLastContentUri = ImageManager.addImage(
-                        mContentResolver,
-                        title,
-                        dateTaken,
-                        null, // location from gps/network
-                        ImageManager.CAMERA_IMAGE_BUCKET_NAME, filename,
-                        null, data,
-                        degree);
-                return degree[0];
-            } catch (Exception ex) {
-                Log.e(TAG, "Exception while compressing image.", ex);
-                return 0;
-            }
-        }
-
-        public int storeImage(final byte[] data,
+        // True while the shutter button is held down in burst mode.
+        private boolean mBurst;
+        private int mBurstCount;
+        private long mFirstBurstJpegTime;
+        private long mLastBurstJpegTime;
+        // The location the pictures are tagged with, or null.
+        private Location mCaptureLocation;
+
+        // The picture is written by mImageSaver; the result comes back in
+        // onImageSaved().
+        public void storeImage(final byte[] data,
                 android.hardware.Camera camera) {
             if (!mIsImageCaptureIntent) {
-                int degree = storeImage(data);
-                sendBroadcast(new Intent(
-                        "com.android.camera.NEW_PICTURE", mLastContentUri));
-                if (isPreviewAnimationDisable()) {
-                	setLastPictureThumb(data, degree,
-                            mImageCapture.getLastCaptureUri());
-                	mThumbController.updateDisplayIfNeeded(500);
-                } else {
-                	mThumbController.setUri(mImageCapture.getLastCaptureUri());
-                }
-                return degree;
+                long dateTaken = System.currentTimeMillis();
+                String title = createName(dateTaken);
+                mImageSaver.addImage(data, title, dateTaken,
+                        mCaptureLocation, // location from gps/network
+                        mThumbAnimated);
+                mThumbAnimated = false;
             } else {
                 mCaptureOnlyData = data;
                 //showPostCaptureAlert();
             }
-            return 0;
+        }
+
+        public void onImageSaved(ImageSaver.SaveRequest request) {
+            mLastContentUri = request.mUri;
         }
 
         /**
@@ -840,8 +1036,20 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                 return;
             }
 
-        	mDoAnimation = true;
-            mCameraDevice.setOneShotPreviewCallback(mPreviewFrameCallback);
+            // The picture is taken right away. The capture animation then
+            // starts from the newest kept preview frame in zero shutter lag
+            // mode, or else from the thumbnail of the JPEG when it arrives.
+            mDoAnimation = !isPreviewAnimationDisable();
+            mThumbAnimated = false;
+            capture();
+            if (mDoAnimation && mZslRing != null) {
+                ZslFrameRing.Frame frame = mZslRing.take(
+                        SystemClock.uptimeMillis(), ZSL_MAX_FRAME_DISTANCE);
+                if (frame != null) {
+                    animatePreviewToThumb(frame.mData);
+                    mZslRing.release(frame);
+                }
+            }
         }
 
         public Uri getLastCaptureUri() {
@@ -855,34 +1063,30 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         private void capture() {
             mCaptureOnlyData = null;
             
-            // See android.hardware.Camera.Parameters.setRotation for
-            // documentation.
-            int rotation = 0;
-            if (mOrientation != OrientationEventListener.ORIENTATION_UNKNOWN) {
-            	CameraHolder holder = CameraHolder.instance();
-            	if (holder.isFrontFacing(mCameraId)) {
-            		rotation = (holder.getCameraOrientation(mCameraId, mOrientation) - mOrientation + 360) % 360;
-            	} else {
-            		rotation = (holder.getCameraOrientation(mCameraId, mOrientation) + mOrientation) % 360;
-            	}
+            // The rotation is kept up to date as the orientation changes, so
+            // this only calls setParameters() if a new location fix came in
+            // or the orientation changed just now.
+            if (updateCaptureParameters()) {
+                mCameraDevice.setParameters(mParameters);
             }
-            mParameters.setRotation(rotation);
-
-            // Clear previous GPS location from the parameters.
-            mParameters.removeGpsData();
-
-            // We always encode GpsTimeStamp
-            mParameters.setGpsTimestamp(System.currentTimeMillis() / 1000);
-
-            mCameraDevice.setParameters(mParameters);
+            mCaptureLocation = mAppliedLocation;
             
             if (isSoundFXDisabled()) {
             	mAudioManager.setStreamMute(AudioManager.STREAM_SYSTEM, true);
             }
 
+            mTakePictureTime = System.currentTimeMillis();
+            if (!mBurst || mBurstCount == 0) {
+                mLatencyTracker.record(
+                        CaptureLatencyTracker.STAGE_PRESS_TO_TAKE_PICTURE,
+                        mTakePictureTime - mCaptureStartTime);
+            }
             mCameraDevice.takePicture(mShutterCallback, mRawPictureCallback,
                     mPostViewPictureCallback, new JpegPictureCallback());
             mPreviewing = false;
+            if (mPreviewBufferPool != null) {
+                mPreviewBufferPool.onPreviewStopped();
+            }
         }
 
         public void onSnap() {
@@ -895,7 +1099,86 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             mHeadUpDisplay.setEnabled(false);
             mStatus = SNAPSHOT_IN_PROGRESS;
 
-            mImageCapture.initiate();
+            if (mBurst) {
+                // No capture animation in a burst, so don't wait for a
+                // preview frame.
+                mBurstCount = 0;
+                capture();
+            } else {
+                mImageCapture.initiate();
+            }
+        }
+
+        // Takes pictures for as long as the shutter button is held. The
+        // first picture is taken by onSnap(), when focus allows.
+        public void startBurst() {
+            mBurst = true;
+        }
+
+        public void stopBurst() {
+            if (!mBurst) return;
+            mBurst = false;
+            if (mBurstCount > 1) {
+                mBurstShotsPerSecond = (mBurstCount - 1) * 1000f
+                        / Math.max(1, mLastBurstJpegTime - mFirstBurstJpegTime);
+                Log.v(TAG, "burst: " + mBurstCount + " pictures, "
+                        + mBurstShotsPerSecond + " shots/s");
+            }
+            // If we are waiting for the saver, the preview is already running
+            // and no picture is in flight: the burst is over now. Otherwise
+            // the pending JPEG callback finishes it like a single shot.
+            if (mHandler.hasMessages(CONTINUE_BURST)) {
+                mHandler.removeMessages(CONTINUE_BURST);
+                mStatus = IDLE;
+            }
+        }
+
+        public boolean isBurstActive() {
+            return mBurst;
+        }
+
+        // Called from the JPEG callback while the burst is active.
+        public void continueBurst() {
+            long now = System.currentTimeMillis();
+            if (mBurstCount++ == 0) mFirstBurstJpegTime = now;
+            mLastBurstJpegTime = now;
+
+            // Parameters and preview display are still set, so we only need
+            // to start the preview again before the next takePicture().
+            try {
+                long start = System.currentTimeMillis();
+                mCameraDevice.startPreview();
+                mLatencyTracker.record(
+                        CaptureLatencyTracker.STAGE_PREVIEW_RESTART,
+                        System.currentTimeMillis() - start);
+                mPreviewing = true;
+                if (mPreviewBufferPool != null) {
+                    mPreviewBufferPool.onPreviewStarted(mParameters);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, "startPreview failed during burst", ex);
+                stopBurst();
+                restartPreview();
+                return;
+            }
+            takeNextBurstPicture();
+        }
+
+        public void takeNextBurstPicture() {
+            if (!mBurst || mPausing || mPicturesRemaining < 1) {
+                stopBurst();
+                mStatus = IDLE;
+                return;
+            }
+            // Keep memory bounded: the frames are handed to the image saver
+            // rather than accumulated, so wait until it can take one more.
+            if (mImageSaver.isFull()) {
+                mHandler.sendEmptyMessageDelayed(CONTINUE_BURST,
+                        BURST_RETRY_DELAY);
+                return;
+            }
+            mHeadUpDisplay.setEnabled(false);
+            capture();
         }
 
         private void clearLastData() {
@@ -908,39 +1191,33 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 		return prefs.getBoolean("disable_shutter_sound", true);
 	}
 
+    public boolean isZslEnabled() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		return prefs.getBoolean("enable_zsl", false);
+    }
+
+    public boolean isZslFullResolution() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		return prefs.getBoolean("zsl_full_resolution", false);
+    }
+
     public boolean isPreviewAnimationDisable() {
     	SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		return prefs.getBoolean("disable_preview_animation", true);
     }
     
-    private boolean saveDataToFile(String filePath, byte[] data) {
-        FileOutputStream f = null;
-        try {
-            f = new FileOutputStream(filePath);
-            f.write(data);
-        } catch (IOException e) {
-            return false;
-        } finally {
-            MenuHelper.closeSilently(f);
-        }
-        return true;
-    }
-
     private void setLastPictureThumb(byte[] data, int degree, Uri uri) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = 16;
-        Bitmap lastPictureThumb =
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        // Most drivers embed a small thumbnail, which is much cheaper to
+        // decode than the picture.
+        Bitmap lastPictureThumb = Util.makeThumbnail(data, 16);
         lastPictureThumb = Util.rotate(lastPictureThumb, degree);
         mThumbController.setData(uri, lastPictureThumb);
+        // The controller keeps its own scaled copy.
+        BitmapPool.instance().put(lastPictureThumb);
     }
 
     private String createName(long dateTaken) {
-        Date date = new Date(dateTaken);
-        SimpleDateFormat dateFormat = new SimpleDateFormat(
-                getString(R.string.image_file_name_format));
-
-        return dateFormat.format(date);
+        return mFileNameGenerator.generate(dateTaken);
     }
 
     @Override
@@ -949,12 +1226,20 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
         
         mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
+
+        mLatencyTracker = new CaptureLatencyTracker(
+                getFileStreamPath(LATENCY_STATE_FILE));
+        mLatencyTracker.loadInBackground();
         
         setContentView(R.layout.camera);
         mSurfaceView = (SurfaceView) findViewById(R.id.camera_preview);
 
         mPreferences = new ComboPreferences(this);
         CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
+        mStorageBudget = new StorageBudget();
+        mFileNameGenerator = new FileNameGenerator(
+                getString(R.string.image_file_name_format));
+        mStorageBudget.load(mPreferences.getGlobal());
         mCameraId = CameraSettings.readPreferredCameraId(mPreferences);
         mPreferences.setLocalId(this, mCameraId);
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
@@ -998,6 +1283,9 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         
         mIsLightboxPhotosIntent = isLightboxIntent();
 
+        // Load the last picture thumbnail while the preview starts.
+        new ThumbnailLoader(true, null).start();
+
         //View attachControlBar = findViewById(R.id.attach_control_bar);
         //View controlBar = findViewById(R.id.control_bar);
         /*if (mIsImageCaptureIntent) {
@@ -1148,6 +1436,12 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 				return;
 			}
 			mOrientation = roundOrientation(orientation);
+			// Send the new picture rotation now rather than on the next
+			// shutter press.
+			if (mCameraDevice != null && mPreviewing && mStatus == IDLE
+					&& !mPausing && updateCaptureParameters()) {
+				mCameraDevice.setParameters(mParameters);
+			}
 			// When the screen is unlocked, display rotation may change. Always
 			// calculate the up-to-date orientationCompensation.
 			int orientationCompensation = mOrientation
@@ -1203,6 +1497,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     }
 
     private void checkStorage() {
+        mStorageBudget.invalidate();
         calculatePicturesRemaining();
         updateStorageHint(mPicturesRemaining);
     }
@@ -1273,15 +1568,161 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         }
     }
 
-    private Bitmap createCaptureBitmap(byte[] data) {
-        // This is really stupid...we just want to read the orientation in
-        // the jpeg header.
-        String filepath = ImageManager.getTempJpegPath();
-        int degree = 0;
-        if (saveDataToFile(filepath, data)) {
-            degree = ImageManager.getExifOrientation(filepath);
-            new File(filepath).delete();
+    // Writes the rotation and location for the next picture into
+    // mParameters if they have changed. Returns true if it did; the caller
+    // sends mParameters to the camera.
+    private boolean updateCaptureParameters() {
+        int rotation = getJpegRotation();
+        // The cached fix, if it is fresh enough. This never waits for a fix.
+        Location location = ((CameraApplication) getApplication())
+                .getLocationService().getLocation();
+        if (rotation == mAppliedRotation && location == mAppliedLocation) {
+            return false;
+        }
+        mParameters.setRotation(rotation);
+        // Clear previous GPS location from the parameters.
+        mParameters.removeGpsData();
+        if (location != null) {
+            setGpsParameters(mParameters, location);
         }
+        mAppliedRotation = rotation;
+        mAppliedLocation = location;
+        return true;
+    }
+
+    private static void setGpsParameters(Parameters parameters,
+            Location location) {
+        parameters.setGpsLatitude(location.getLatitude());
+        parameters.setGpsLongitude(location.getLongitude());
+        if (location.hasAltitude()) {
+            parameters.setGpsAltitude(location.getAltitude());
+        } else {
+            // for NETWORK_PROVIDER location provider, we may have
+            // no altitude information, but the driver needs it, so
+            // we fake one.
+            parameters.setGpsAltitude(0);
+        }
+        parameters.setGpsTimestamp(location.getTime() / 1000);
+        if (Build.VERSION.SDK_INT >= 0x00000008 /*Build.VERSION_CODES.FROYO*/
+                && location.getProvider() != null) {
+            parameters.setGpsProcessingMethod(
+                    location.getProvider().toUpperCase());
+        }
+    }
+
+    // Returns the rotation of the pictures for the current orientation.
+    // See android.hardware.Camera.Parameters.setRotation for documentation.
+    private int getJpegRotation() {
+        int rotation = 0;
+        if (mOrientation != OrientationEventListener.ORIENTATION_UNKNOWN) {
+        	CameraHolder holder = CameraHolder.instance();
+        	if (holder.isFrontFacing(mCameraId)) {
+        		rotation = (holder.getCameraOrientation(mCameraId, mOrientation) - mOrientation + 360) % 360;
+        	} else {
+        		rotation = (holder.getCameraOrientation(mCameraId, mOrientation) + mOrientation) % 360;
+        	}
+        }
+        return rotation;
+    }
+
+    // Starts or stops keeping preview frames for zero shutter lag capture,
+    // as set in the preferences. Called when the preview has started.
+    private void updateZslRing() {
+        int format = mParameters.getPreviewFormat();
+        boolean enable = mPreviewBufferPool != null && !mIsImageCaptureIntent
+                && (format == ImageFormat.NV21 || format == ImageFormat.YUY2)
+                && isZslEnabled();
+        if (mZslRing != null) {
+            if (enable && mZslRing.getFormat() == format) return;
+            mPreviewBufferPool.setFrameCallback(null);
+            mZslRing.clear();
+            mZslRing = null;
+        }
+        if (enable) {
+            mZslRing = new ZslFrameRing(mPreviewBufferPool, ZSL_FRAME_COUNT,
+                    format);
+            mPreviewBufferPool.ensureBufferCount(
+                    PREVIEW_BUFFER_COUNT + ZSL_FRAME_COUNT);
+            mPreviewBufferPool.setFrameCallback(mZslRing);
+        }
+    }
+
+    // Saves the preview frame closest to pressTime as a picture. The frame is
+    // encoded in the background and handed to the saver from there, see
+    // waitForZslEncoder(). Returns false if there is no such frame.
+    private boolean takeZslPicture(long pressTime) {
+        final ZslFrameRing ring = mZslRing;
+        final ImageSaver saver = mImageSaver;
+        final ZslFrameRing.Frame frame =
+                ring.take(pressTime, ZSL_MAX_FRAME_DISTANCE);
+        if (frame == null || saver == null || mPicturesRemaining < 1) {
+            if (frame != null) ring.release(frame);
+            return false;
+        }
+        final int quality = mParameters.getJpegQuality();
+        final int rotation = getJpegRotation();
+        final long dateTaken = System.currentTimeMillis();
+        final String title = createName(dateTaken);
+        final Location location = ((CameraApplication) getApplication())
+                .getLocationService().getLocation();
+
+        // No JPEG callback follows to animate from, and onImageSaved() only
+        // sets the thumbnail when the animation is off. Animate from the
+        // frame now, while we still own it. A full resolution picture
+        // animates by itself.
+        if (!isZslFullResolution() && !isPreviewAnimationDisable()) {
+            mDoAnimation = true;
+            animatePreviewToThumb(frame.mData);
+            mDoAnimation = false;
+        }
+        final boolean animated = mThumbAnimated;
+        mThumbAnimated = false;
+
+        sZslEncoder.execute(new Runnable() {
+            public void run() {
+                byte[] jpeg;
+                try {
+                    jpeg = ring.encode(frame, quality, rotation);
+                } finally {
+                    ring.release(frame);
+                }
+                if (jpeg == null) return;
+                // Not through mHandler: onPause() may come first, and the
+                // saver is finished there.
+                mStorageBudget.onPictureTaken(jpeg.length);
+                saver.addImage(jpeg, title, dateTaken, location, animated);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (mPausing) return;
+                        calculatePicturesRemaining();
+                        if (mPicturesRemaining < 1) {
+                            updateStorageHint(mPicturesRemaining);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    // Waits until the zero shutter lag pictures taken so far are queued in
+    // the image saver.
+    private void waitForZslEncoder() {
+        try {
+            // The encoder runs one task at a time, in order.
+            sZslEncoder.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "ZSL encoder failed", e);
+        }
+    }
+
+    private Bitmap createCaptureBitmap(byte[] data) {
+        int degree = ExifParser.getOrientation(data);
 
         // Limit to 50k pixels so we can return it in the intent.
         Bitmap bitmap = Util.makeBitmap(data, 50 * 1024);
@@ -1294,75 +1735,118 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             return;
         }
 
-        byte[] data = mImageCapture.getLastCaptureData();
+        new AttachTask(mImageCapture.getLastCaptureData()).start();
+    }
 
-        if (mCropValue == null) {
-            // First handle the no crop case -- just return the value.  If the
-            // caller specifies a "save uri" then write the data to it's
-            // stream. Otherwise, pass back a scaled down version of the bitmap
-            // directly in the extras.
-            if (mSaveUri != null) {
-                OutputStream outputStream = null;
-                try {
-                    outputStream = mContentResolver.openOutputStream(mSaveUri);
-                    outputStream.write(data);
-                    outputStream.close();
+    /**
+     * Delivers the picture to the caller of ACTION_IMAGE_CAPTURE. Writing
+     * the data and making the inline bitmap happen on this thread; only the
+     * result is posted back to the main thread, which finishes the activity
+     * or starts the cropper.
+     */
+    private class AttachTask extends Thread {
+        private final byte[] mData;
+        private final Uri mSaveUri = Camera.this.mSaveUri;
+        private final String mCropValue = Camera.this.mCropValue;
+        private final ContentResolver mResolver = getContentResolver();
+
+        AttachTask(byte[] data) {
+            super("AttachTask");
+            mData = data;
+        }
 
-                    setResult(RESULT_OK);
-                    finish();
+        @Override
+        public void run() {
+            if (mCropValue == null) {
+                // First handle the no crop case -- just return the value.  If
+                // the caller specifies a "save uri" then write the data to
+                // it's stream. Otherwise, pass back a scaled down version of
+                // the bitmap directly in the extras.
+                if (mSaveUri != null) {
+                    OutputStream outputStream = null;
+                    try {
+                        outputStream = mResolver.openOutputStream(mSaveUri);
+                        write(outputStream, mData);
+                        outputStream.close();
+                        post(new Intent(), null);
+                    } catch (IOException ex) {
+                        // ignore exception
+                    } finally {
+                        Util.closeSilently(outputStream);
+                    }
+                } else {
+                    Bitmap bitmap = createCaptureBitmap(mData);
+                    post(new Intent("inline-data").putExtra("data", bitmap),
+                            null);
+                }
+            } else {
+                // Save the image to a temp file and invoke the cropper
+                FileOutputStream tempStream = null;
+                try {
+                    File path = getFileStreamPath(sTempCropFilename);
+                    path.delete();
+                    tempStream = openFileOutput(sTempCropFilename, 0);
+                    write(tempStream, mData);
+                    tempStream.close();
+                    post(null, Uri.fromFile(path));
                 } catch (IOException ex) {
-                    // ignore exception
+                    post(null, null);
                 } finally {
-                    Util.closeSilently(outputStream);
+                    Util.closeSilently(tempStream);
                 }
-            } else {
-            	//TODO need write to temp file and pass on to the filter activity
-            	
-                Bitmap bitmap = createCaptureBitmap(data);
-                setResult(RESULT_OK,
-                        new Intent("inline-data").putExtra("data", bitmap));
-                finish();
-            }
-        } else {
-            // Save the image to a temp file and invoke the cropper
-            Uri tempUri = null;
-            FileOutputStream tempStream = null;
-            try {
-                File path = getFileStreamPath(sTempCropFilename);
-                path.delete();
-                tempStream = openFileOutput(sTempCropFilename, 0);
-                tempStream.write(data);
-                tempStream.close();
-                tempUri = Uri.fromFile(path);
-            } catch (FileNotFoundException ex) {
-                setResult(Activity.RESULT_CANCELED);
-                finish();
-                return;
-            } catch (IOException ex) {
-                setResult(Activity.RESULT_CANCELED);
-                finish();
-                return;
-            } finally {
-                Util.closeSilently(tempStream);
             }
+        }
 
-            Bundle newExtras = new Bundle();
-            if (mCropValue.equals("circle")) {
-                newExtras.putString("circleCrop", "true");
-            }
-            if (mSaveUri != null) {
-                newExtras.putParcelable(MediaStore.EXTRA_OUTPUT, mSaveUri);
-            } else {
-                newExtras.putBoolean("return-data", true);
+        // Posts the result: the result intent, or the temporary file to crop,
+        // or neither if writing it failed.
+        private void post(final Intent result, final Uri tempUri) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (result != null) {
+                        setResult(RESULT_OK, result);
+                        finish();
+                    } else if (tempUri == null) {
+                        setResult(Activity.RESULT_CANCELED);
+                        finish();
+                    } else {
+                        startCropper(tempUri);
+                    }
+                }
+            });
+        }
+    }
+
+    // Writes the data through the file channel if the stream has one.
+    private static void write(OutputStream out, byte[] data)
+            throws IOException {
+        if (out instanceof FileOutputStream) {
+            FileChannel channel = ((FileOutputStream) out).getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
+        } else {
+            out.write(data);
+        }
+    }
 
-            Intent cropIntent = new Intent("com.android.camera.action.CROP");
+    private void startCropper(Uri tempUri) {
+        Bundle newExtras = new Bundle();
+        if (mCropValue.equals("circle")) {
+            newExtras.putString("circleCrop", "true");
+        }
+        if (mSaveUri != null) {
+            newExtras.putParcelable(MediaStore.EXTRA_OUTPUT, mSaveUri);
+        } else {
+            newExtras.putBoolean("return-data", true);
+        }
 
-            cropIntent.setData(tempUri);
-            cropIntent.putExtras(newExtras);
+        Intent cropIntent = new Intent("com.android.camera.action.CROP");
 
-            startActivityForResult(cropIntent, CROP_MSG);
-        }
+        cropIntent.setData(tempUri);
+        cropIntent.putExtras(newExtras);
+
+        startActivityForResult(cropIntent, CROP_MSG);
     }
     
     private void doCancel() {
@@ -1376,11 +1860,29 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         }
         switch (button.getId()) {
             case R.id.shutter_button:
+                if (pressed) {
+                    // The click comes on release; zero shutter lag wants the
+                    // frame from the press.
+                    mShutterPressTime = SystemClock.uptimeMillis();
+                } else {
+                    mImageCapture.stopBurst();
+                }
                 doFocus(pressed);
                 break;
         }
     }
 
+    public boolean onShutterButtonLongPressed(ShutterButton button) {
+        if (mPausing || mIsImageCaptureIntent) {
+            return false;
+        }
+        switch (button.getId()) {
+            case R.id.shutter_button:
+                return doBurst();
+        }
+        return false;
+    }
+
     public void onShutterButtonClick(ShutterButton button) {
         if (mPausing) {
             return;
@@ -1430,8 +1932,11 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         intentFilter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
         intentFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
         intentFilter.addAction(Intent.ACTION_MEDIA_CHECKING);
+        intentFilter.addAction(Intent.ACTION_MEDIA_EJECT);
         intentFilter.addDataScheme("file");
         registerReceiver(mReceiver, intentFilter);
+        // We may have missed broadcasts while paused.
+        StorageState.invalidate();
         mDidRegister = true;
     }
 
@@ -1485,6 +1990,11 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         mJpegPictureCallbackTime = 0;
         mZoomValue = 0;
         mImageCapture = new ImageCapture();
+        if (!mIsImageCaptureIntent) {
+            mImageSaver = new ImageSaver(getContentResolver(),
+                    mImageSavedListener, new JpegWriter(JPEG_SYNC_POLICY));
+        }
+        mYuvConverter = new YuvConverter(YuvConverter.getDefaultThreadCount());
 
         // Start the preview if it is not started.
         if (!mPreviewing && !mStartPreviewFail) {
@@ -1514,6 +2024,17 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         return ImageManager.DataLocation.EXTERNAL;
     }
 
+    // Prints the capture latency histograms ("adb shell dumpsys activity
+    // <component>", API level 11 and later) and writes them to
+    // capture_latency.txt in the app's files directory.
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mLatencyTracker.dump(writer);
+        mLatencyTracker.dumpToFile(getFileStreamPath(LATENCY_REPORT_FILE));
+    }
+
     @Override
     protected void onPause() {
         mPausing = true;
@@ -1526,12 +2047,28 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         resetScreenOn();
         changeHeadUpDisplayState();
 
+        // Finish writing the pictures still in the queue, so the gallery sees
+        // them and the thumbnail below refers to the last one.
+        waitForZslEncoder();
+        if (mImageSaver != null) {
+            mImageSaver.finish();
+            mImageSaver = null;
+        }
+        mYuvConverter.release();
+        mYuvConverter = null;
+        mPreviewPixels = null;
+        Log.v(TAG, BitmapPool.instance().toString());
+        BitmapPool.instance().clear();
+        mLatencyTracker.saveInBackground();
+        Editor editor = mPreferences.getGlobal().edit();
+        mStorageBudget.save(editor);
+        editor.commit();
+
         if (mFirstTimeInitialized) {
             if (!mIsImageCaptureIntent) {
-            	String lastPhotoThumbPath = getLastPhotoThumbPath();
-            	if (lastPhotoThumbPath != null) {
-            		mThumbController.storeData(lastPhotoThumbPath);
-            	}
+                // Only our own cache file, never the Lightbox photo.
+                mThumbController.storeData(
+                        ImageManager.getLastImageThumbPath());
             }
             //hidePostCaptureAlert();
         }
@@ -1559,6 +2096,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         // Remove the messages in the event queue.
         mHandler.removeMessages(RESTART_PREVIEW);
         mHandler.removeMessages(FIRST_TIME_INIT);
+        mHandler.removeMessages(CONTINUE_BURST);
 
         ((CameraApplication)getApplication()).deregisterOrientationChangeListener(mOrientationChangeListener);
         
@@ -1653,6 +2191,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                 return true;
             case KeyEvent.KEYCODE_CAMERA:
                 if (mFirstTimeInitialized && event.getRepeatCount() == 0) {
+                    mShutterPressTime = SystemClock.uptimeMillis();
                     doSnap();
                 }
                 return true;
@@ -1693,6 +2232,20 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     private void doSnap() {
         if (mHeadUpDisplay.collapse()) return;
 
+        long pressTime = mShutterPressTime != 0
+                ? mShutterPressTime : SystemClock.uptimeMillis();
+        mShutterPressTime = 0;
+
+        // In zero shutter lag mode the picture is the preview frame from the
+        // press, so we don't wait for focus. A full resolution picture may
+        // follow.
+        if (mZslRing != null && !mImageCapture.isBurstActive()
+                && mStatus != SNAPSHOT_IN_PROGRESS
+                && takeZslPicture(pressTime)
+                && !isZslFullResolution()) {
+            return;
+        }
+
         Log.v(TAG, "doSnap: mFocusState=" + mFocusState);
         // If the user has half-pressed the shutter and focus is completed, we
         // can take the photo right away. If the focus mode is infinity, we can
@@ -1713,6 +2266,16 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         }
     }
 
+    // Starts a burst which lasts until the shutter button is released.
+    private boolean doBurst() {
+        if (mStatus == SNAPSHOT_IN_PROGRESS || mHeadUpDisplay.collapse()) {
+            return false;
+        }
+        mImageCapture.startBurst();
+        doSnap();
+        return true;
+    }
+
     private void doFocus(boolean pressed) {
         // Do the focus if the mode is not infinity.
         if (mHeadUpDisplay.collapse()) return;
@@ -1786,6 +2349,9 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             if (Build.VERSION.SDK_INT >= 0x00000008) {
             	mCameraDevice.setZoomChangeListener(null);
             }
+            if (mPreviewBufferPool != null) {
+                mPreviewBufferPool.setCamera(null);
+            }
             mCameraDevice = null;
             mPreviewing = false;
         }
@@ -1795,35 +2361,12 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
         if (mCameraDevice == null) {
             mCameraDevice = CameraHolder.instance().open(mCameraId);
             mInitialParams = mCameraDevice.getParameters();
+            if (mPreviewBufferPool != null) {
+                mPreviewBufferPool.setCamera(mCameraDevice);
+            }
         }
     }
 
-    private void updateLastImage() {
-    	final String lastPhotoThumbPath = getLastPhotoThumbPath();
-    	if (lastPhotoThumbPath != null) {
-    		Bitmap bitmap = BitmapFactory.decodeFile(lastPhotoThumbPath);
-    		mThumbController.setData(Uri.fromFile(new File(lastPhotoThumbPath)), bitmap);   		
-    	} else {
-    		mThumbController.setData(null, null);
-    	}
-    	
-       /* IImageList list = ImageManager.makeImageList(
-            mContentResolver,
-            dataLocation(),
-            ImageManager.INCLUDE_IMAGES,
-            ImageManager.SORT_ASCENDING,
-            ImageManager.CAMERA_IMAGE_BUCKET_ID);
-        int count = list.getCount();
-        if (count > 0) {
-            IImage image = list.getImageAt(count - 1);
-            Uri uri = image.fullSizeImageUri();
-            mThumbController.setData(uri, image.miniThumbBitmap());
-        } else {
-            mThumbController.setData(null, null);
-        }
-        list.close();*/
-    }
-
     private void showCameraErrorAndFinish() {
         Resources ress = getResources();
         Util.showFatalErrorAndFinish(Camera.this,
@@ -1843,25 +2386,73 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 
     private boolean mDoAnimation = false;
     private boolean mAnimationDone = false;
+    // Set when a capture animation starts, and handed to the image saver
+    // with the picture it belongs to.
+    private boolean mThumbAnimated = false;
+    // Animates the thumbnail embedded in the JPEG into the review button, if
+    // no preview frame was available for the animation. The JPEG is decoded
+    // on sThumbDecoder, and the animation starts when it is done.
+    private void animateJpegToThumb(final byte[] jpegData) {
+    	if (!mDoAnimation || mLastPictureButton == null || jpegData == null) {
+    		return;
+    	}
+    	mDoAnimation = false;
+    	mThumbAnimated = true;
+    	final boolean mirror = CameraHolder.instance().isFrontFacing(mCameraId);
+    	sThumbDecoder.execute(new Runnable() {
+    		public void run() {
+    			// The JPEG pixels are oriented like the preview frames.
+    			Bitmap bitmap = Util.makeThumbnail(jpegData, 8);
+    			if (bitmap == null) return;
+    			if (mirror) {
+    				bitmap = Util.rotateAndMirror(bitmap, 0, true);
+    			}
+    			final Bitmap thumb = bitmap;
+    			mHandler.post(new Runnable() {
+    				public void run() {
+    					if (mPausing) {
+    						BitmapPool.instance().put(thumb);
+    					} else {
+    						animateToThumb(thumb);
+    					}
+    				}
+    			});
+    		}
+    	});
+    }
+
     private void animatePreviewToThumb(byte[] data) {
     	if (!mDoAnimation || mLastPictureButton == null || data == null) {
     		return;
     	}
     	
-    	mAnimationDone = false;
     	
 		//mPreviewFrameData = new byte[data.length];
 		//System.arraycopy(data, 0, mPreviewFrameData, 0, data.length);
 		//Log.d(TAG, "data="+mPreviewFrameData);
 		int width = mParameters.getPreviewSize().width;
 		int height = mParameters.getPreviewSize().height;
-		int[] pixels = new int[width*height];
-		Util.decodeYUV(pixels, data, width,height);
-		Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Config.RGB_565);
-		if (CameraHolder.instance().isFrontFacing(mCameraId)) {
-			bitmap = Util.flipHorizontally(bitmap);
-		}
-    	
+		// Convert straight to the animation size, mirroring the front camera
+		// in the same pass.
+		int sampleSize = YuvConverter.computeSampleSize(width, PREVIEW_ANIMATION_WIDTH);
+		boolean mirror = CameraHolder.instance().isFrontFacing(mCameraId);
+		mPreviewPixels = mYuvConverter.convertScaled(data, width, height,
+				sampleSize, mirror, mPreviewPixels);
+		int bitmapWidth = YuvConverter.scaledLength(width, sampleSize);
+		int bitmapHeight = YuvConverter.scaledLength(height, sampleSize);
+		Bitmap bitmap = BitmapPool.instance().get(bitmapWidth, bitmapHeight,
+				Config.RGB_565);
+		bitmap.setPixels(mPreviewPixels, 0, bitmapWidth, 0, 0, bitmapWidth,
+				bitmapHeight);
+		mThumbAnimated = true;
+		animateToThumb(bitmap);
+    }
+
+    // Shows the bitmap over the preview and shrinks it into the review
+    // button. The bitmap goes back to the BitmapPool at the end.
+    private void animateToThumb(Bitmap bitmap) {
+    	mAnimationDone = false;
+
     	final ImageView previewImage = (ImageView)findViewById(R.id.imageViewPreview);
     	
     	//if (!CameraHolder.instance().isFrontFacing(mCameraId)) {
@@ -1930,9 +2521,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 				if (drawable != null) {
 					Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
 					previewImage.setImageBitmap(null);
-					if (bitmap != null && !bitmap.isRecycled()) {
-						bitmap.recycle();
-					}
+					BitmapPool.instance().put(bitmap);
 				}
 			}
 		});
@@ -1968,12 +2557,19 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
 
         try {
             Log.v(TAG, "startPreview");
+            long start = System.currentTimeMillis();
             mCameraDevice.startPreview();
+            mLatencyTracker.record(CaptureLatencyTracker.STAGE_PREVIEW_RESTART,
+                    System.currentTimeMillis() - start);
         } catch (Throwable ex) {
             closeCamera();
             throw new RuntimeException("startPreview failed", ex);
         }
         mPreviewing = true;
+        if (mPreviewBufferPool != null) {
+            mPreviewBufferPool.onPreviewStarted(mParameters);
+        }
+        updateZslRing();
         mZoomState = ZOOM_STOPPED;
         mStatus = IDLE;
     }
@@ -1984,6 +2580,12 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             mCameraDevice.stopPreview();
         }
         mPreviewing = false;
+        if (mPreviewBufferPool != null) {
+            mPreviewBufferPool.onPreviewStopped();
+        }
+        if (mZslRing != null) {
+            mZslRing.clear();
+        }
         // If auto focus was in progress, it would have been canceled.
         clearFocusState();
     }
@@ -2124,6 +2726,9 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
                 CameraSettings.KEY_JPEG_QUALITY,
                 getString(R.string.pref_camera_jpegquality_default));
         mParameters.setJpegQuality(JpegEncodingQualityMappings.getQualityNumber(jpegQuality));
+        Size picture = mParameters.getPictureSize();
+        mStorageBudget.setPictureFormat(picture.width, picture.height,
+                mParameters.getJpegQuality());
 
         // For the following settings, we need to check if the settings are
         // still supported by latest driver, if not, ignore the settings.
@@ -2220,12 +2825,18 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
             updateCameraParametersPreference();
         }
 
+        // mParameters was just read back from the driver; write the picture
+        // rotation and location again.
+        mAppliedRotation = -1;
+        updateCaptureParameters();
+
     	Parameters oldParameters = mCameraDevice.getParameters();
         try {
         	mCameraDevice.setParameters(mParameters);
         } catch (IllegalArgumentException e) {
         	mCameraDevice.setParameters(oldParameters);
         	mParameters = oldParameters;
+        	mAppliedRotation = -1;
         	mZoomValue = 0;
         	Log.w(TAG, e);
         }
@@ -2319,7 +2930,7 @@ public class Camera extends NoSearchActivity implements View.OnClickListener,
     }*/
 
     private int calculatePicturesRemaining() {
-        mPicturesRemaining = MenuHelper.calculatePicturesRemaining();
+        mPicturesRemaining = mStorageBudget.getPicturesRemaining();
         return mPicturesRemaining;
     }
     
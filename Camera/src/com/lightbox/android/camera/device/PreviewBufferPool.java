@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera.device;
+
+import java.util.ArrayList;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Delivers preview frames in a fixed set of preallocated buffers.
+ *
+ * <p>{@code setOneShotPreviewCallback()} and {@code setPreviewCallback()}
+ * make the driver allocate a new {@code byte[]} for every frame. This pool
+ * uses {@code setPreviewCallbackWithBuffer()} instead, so after the buffers
+ * are allocated the preview path allocates nothing. The buffers are
+ * allocated lazily, the first time a frame is requested. They are sized
+ * from the preview size and format, and are reallocated when those change.
+ *
+ * <p>The callback is registered with the camera only while somebody wants
+ * frames, so the driver does not copy frames nobody reads. A
+ * {@link FrameCallback} gets every frame and may keep a buffer for a while;
+ * it must then hand the buffer back with {@link #releaseBuffer(byte[])}.
+ *
+ * <p>The buffer API needs API level 8, see {@link #isSupported()}. Frames are
+ * delivered on the thread which opened the camera.
+ */
+public class PreviewBufferPool implements PreviewCallback {
+    private static final String TAG = "PreviewBufferPool";
+
+    public interface FrameCallback {
+        /**
+         * Called with every preview frame while this callback is set.
+         * Returns true to keep {@code data}, which must then be returned with
+         * {@link PreviewBufferPool#releaseBuffer(byte[])}. Otherwise the
+         * buffer is reused as soon as this returns.
+         */
+        public boolean onPreviewFrame(byte[] data, int width, int height);
+    }
+
+    private int mBufferCount;
+
+    private android.hardware.Camera mCamera;
+    private int mWidth;
+    private int mHeight;
+    private int mBufferSize;
+
+    // Buffers of the current size which are neither queued in the camera nor
+    // kept by a FrameCallback.
+    private final ArrayList<byte[]> mFree = new ArrayList<byte[]>();
+    // Buffers handed to the camera with addCallbackBuffer().
+    private final ArrayList<byte[]> mQueued = new ArrayList<byte[]>();
+    // The number of buffers of the current size allocated so far.
+    private int mAllocated;
+    // True while this is the camera's preview callback.
+    private boolean mRegistered;
+    private boolean mPreviewing;
+
+    private FrameCallback mFrameCallback;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 0x00000008 /*Build.VERSION_CODES.FROYO*/;
+    }
+
+    /**
+     * Creates a pool of {@code bufferCount} buffers. The camera can fill one
+     * buffer while the others are being read.
+     */
+    public PreviewBufferPool(int bufferCount) {
+        mBufferCount = Math.max(1, bufferCount);
+    }
+
+    /**
+     * Makes sure the pool has at least {@code bufferCount} buffers, for a
+     * {@link FrameCallback} which keeps several frames. The new buffers are
+     * allocated when they are first needed.
+     */
+    public synchronized void ensureBufferCount(int bufferCount) {
+        if (bufferCount <= mBufferCount) return;
+        mBufferCount = bufferCount;
+        if (mRegistered) {
+            while (mAllocated < mBufferCount) {
+                queue(new byte[mBufferSize]);
+                mAllocated++;
+            }
+        }
+    }
+
+    /**
+     * Sets the camera the frames come from, or null when it is closed.
+     */
+    public synchronized void setCamera(android.hardware.Camera camera) {
+        if (camera == mCamera) return;
+        unregister();
+        mCamera = camera;
+        mPreviewing = false;
+    }
+
+    /**
+     * Must be called after the preview has been started with the given
+     * parameters. Reallocates the buffers if the frame size has changed.
+     */
+    public synchronized void onPreviewStarted(Parameters parameters) {
+        Size size = parameters.getPreviewSize();
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(
+                parameters.getPreviewFormat());
+        if (bitsPerPixel <= 0) bitsPerPixel = 12;  // NV21
+        int bufferSize = size.width * size.height * bitsPerPixel / 8;
+
+        if (bufferSize != mBufferSize) {
+            unregister();
+            // Kept buffers of the old size are dropped when released.
+            mFree.clear();
+            mAllocated = 0;
+            mBufferSize = bufferSize;
+        }
+        mWidth = size.width;
+        mHeight = size.height;
+        mPreviewing = true;
+        updateRegistration();
+    }
+
+    /**
+     * Must be called when the preview is stopped.
+     */
+    public synchronized void onPreviewStopped() {
+        mPreviewing = false;
+        unregister();
+    }
+
+    /**
+     * Delivers every preview frame to {@code callback}, or stops if it is
+     * null.
+     */
+    public synchronized void setFrameCallback(FrameCallback callback) {
+        mFrameCallback = callback;
+        updateRegistration();
+    }
+
+    public synchronized int getWidth() {
+        return mWidth;
+    }
+
+    public synchronized int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns a buffer kept by a {@link FrameCallback}. May be called on any
+     * thread.
+     */
+    public synchronized void releaseBuffer(byte[] data) {
+        if (data.length != mBufferSize) return;  // From an older size.
+        if (mRegistered) {
+            queue(data);
+        } else {
+            mFree.add(data);
+        }
+    }
+
+    public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+        FrameCallback frameCallback;
+        int width, height;
+        synchronized (this) {
+            if (data == null) {
+                // The driver had a frame but no free buffer.
+                return;
+            }
+            removeIdentical(mQueued, data);
+            if (data.length != mBufferSize) return;
+            frameCallback = mFrameCallback;
+            width = mWidth;
+            height = mHeight;
+        }
+
+        boolean kept = false;
+        if (frameCallback != null) {
+            kept = frameCallback.onPreviewFrame(data, width, height);
+        }
+
+        synchronized (this) {
+            if (!kept) {
+                if (mRegistered) {
+                    queue(data);
+                } else {
+                    mFree.add(data);
+                }
+            }
+            updateRegistration();
+        }
+    }
+
+    // Registers with the camera while there is a preview and someone wants
+    // frames, and unregisters otherwise.
+    private void updateRegistration() {
+        boolean wanted = mCamera != null && mPreviewing
+                && mFrameCallback != null;
+        if (wanted == mRegistered) return;
+        if (!wanted) {
+            unregister();
+            return;
+        }
+        while (mAllocated < mBufferCount) {
+            mFree.add(new byte[mBufferSize]);
+            mAllocated++;
+        }
+        Log.v(TAG, "register, " + mFree.size() + " buffers of " + mBufferSize
+                + " bytes");
+        mCamera.setPreviewCallbackWithBuffer(this);
+        mRegistered = true;
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            queue(mFree.remove(i));
+        }
+    }
+
+    private void unregister() {
+        if (!mRegistered) return;
+        // This also clears the buffers queued in the camera.
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mRegistered = false;
+        mFree.addAll(mQueued);
+        mQueued.clear();
+    }
+
+    private void queue(byte[] data) {
+        mCamera.addCallbackBuffer(data);
+        mQueued.add(data);
+    }
+
+    private static void removeIdentical(ArrayList<byte[]> list, byte[] data) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i) == data) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+}
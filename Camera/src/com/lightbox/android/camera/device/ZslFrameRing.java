@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera.device;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+
+import com.lightbox.android.camera.ExifParser;
+
+/**
+ * Keeps the last few preview frames for zero shutter lag capture.
+ *
+ * <p>Set as the {@link PreviewBufferPool.FrameCallback} of a pool, the ring
+ * keeps the buffers of the last {@link #getCapacity()} frames with the time
+ * they arrived; older buffers go back to the pool. When the shutter is
+ * pressed, {@link #take(long, long)} hands out the frame closest to the
+ * press, which {@link #encode} turns into a JPEG. The pool needs
+ * {@code capacity} buffers on top of the ones the camera fills, see
+ * {@link PreviewBufferPool#ensureBufferCount(int)}.
+ *
+ * <p>The frames must be NV21 or YUY2, the formats {@link YuvImage} can
+ * encode, which needs API level 8.
+ */
+public class ZslFrameRing implements PreviewBufferPool.FrameCallback {
+
+    /**
+     * A frame taken out of the ring. Its buffer belongs to the caller until
+     * it is given back with {@link ZslFrameRing#release(Frame)}.
+     */
+    public static class Frame {
+        public final byte[] mData;
+        public final int mWidth;
+        public final int mHeight;
+        // SystemClock.uptimeMillis() when the frame arrived.
+        public final long mTime;
+
+        Frame(byte[] data, int width, int height, long time) {
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mTime = time;
+        }
+    }
+
+    private final PreviewBufferPool mPool;
+    private final int mFormat;
+    private final byte[][] mFrames;
+    private final long[] mTimes;
+    private int mWidth;
+    private int mHeight;
+    // The index of the oldest frame, and the number of frames held.
+    private int mHead;
+    private int mCount;
+
+    /**
+     * @param format the preview format, {@code ImageFormat.NV21} or
+     *     {@code ImageFormat.YUY2}.
+     */
+    public ZslFrameRing(PreviewBufferPool pool, int capacity, int format) {
+        mPool = pool;
+        mFormat = format;
+        mFrames = new byte[capacity][];
+        mTimes = new long[capacity];
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getCapacity() {
+        return mFrames.length;
+    }
+
+    public synchronized boolean onPreviewFrame(byte[] data, int width,
+            int height) {
+        if (width != mWidth || height != mHeight) {
+            // The preview size changed; the old frames are of no use.
+            clear();
+            mWidth = width;
+            mHeight = height;
+        }
+        if (mCount == mFrames.length) {
+            mPool.releaseBuffer(mFrames[mHead]);
+            mFrames[mHead] = null;
+            mHead = (mHead + 1) % mFrames.length;
+            mCount--;
+        }
+        int tail = (mHead + mCount) % mFrames.length;
+        mFrames[tail] = data;
+        mTimes[tail] = SystemClock.uptimeMillis();
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Takes the frame which arrived closest to {@code time}, in
+     * {@code SystemClock.uptimeMillis()}, out of the ring. Returns null if
+     * there is no frame within {@code maxDistance} ms.
+     */
+    public synchronized Frame take(long time, long maxDistance) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % mFrames.length;
+            long distance = Math.abs(mTimes[index] - time);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        if (best < 0 || bestDistance > maxDistance) return null;
+
+        int index = (mHead + best) % mFrames.length;
+        Frame frame = new Frame(mFrames[index], mWidth, mHeight,
+                mTimes[index]);
+        // Close the gap: move the older frames up by one.
+        for (int i = best; i > 0; i--) {
+            int to = (mHead + i) % mFrames.length;
+            int from = (mHead + i - 1) % mFrames.length;
+            mFrames[to] = mFrames[from];
+            mTimes[to] = mTimes[from];
+        }
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        return frame;
+    }
+
+    /**
+     * Gives the buffer of a frame from {@link #take} back to the pool.
+     */
+    public void release(Frame frame) {
+        mPool.releaseBuffer(frame.mData);
+    }
+
+    /**
+     * Gives all the frames back to the pool.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % mFrames.length;
+            mPool.releaseBuffer(mFrames[index]);
+            mFrames[index] = null;
+        }
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Encodes a frame to a JPEG whose EXIF orientation tag says it must be
+     * rotated by {@code degrees}. Can run on any thread.
+     */
+    public byte[] encode(Frame frame, int quality, int degrees) {
+        YuvImage image = new YuvImage(frame.mData, mFormat, frame.mWidth,
+                frame.mHeight, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                frame.mWidth * frame.mHeight / 4);
+        if (!image.compressToJpeg(
+                new Rect(0, 0, frame.mWidth, frame.mHeight), quality, out)) {
+            return null;
+        }
+        byte[] jpeg = out.toByteArray();
+        if (jpeg.length < 2) return null;
+
+        // The encoder writes no EXIF data; put the orientation right after
+        // the SOI marker.
+        byte[] exif = ExifParser.makeOrientationSegment(degrees);
+        byte[] result = new byte[jpeg.length + exif.length];
+        result[0] = jpeg[0];
+        result[1] = jpeg[1];
+        System.arraycopy(exif, 0, result, 2, exif.length);
+        System.arraycopy(jpeg, 2, result, 2 + exif.length, jpeg.length - 2);
+        return result;
+    }
+}
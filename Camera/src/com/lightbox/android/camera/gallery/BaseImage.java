@@ -16,6 +16,7 @@
 
 package com.lightbox.android.camera.gallery;
 
+import com.lightbox.android.camera.BitmapCache;
 import com.lightbox.android.camera.BitmapManager;
 import com.lightbox.android.camera.Util;
 import com.lightbox.android.camera.gallery.IImage;
@@ -34,6 +35,12 @@ import android.util.Log;
  */
 public abstract class BaseImage implements IImage {
     private static final String TAG = "BaseImage";
+    private static final int MINI_THUMB_CACHE_BYTES = 2 * 1024 * 1024;
+
+    // The mini thumbnails, by image uri. Shared by all the image lists, and
+    // read by several decode threads.
+    protected static final BitmapCache<Uri> sMiniThumbCache =
+            new BitmapCache<Uri>(MINI_THUMB_CACHE_BYTES);
     protected ContentResolver mContentResolver;
 
     // Database field
@@ -73,8 +80,10 @@ public abstract class BaseImage implements IImage {
         return 0;
     }
 
+    // The bitmap is shared with the cache and must not be recycled.
     public Bitmap miniThumbBitmap() {
-        Bitmap b = null;
+        Bitmap b = sMiniThumbCache.get(mUri);
+        if (b != null) return b;
         try {
             long id = mId;
             b = BitmapManager.instance().getThumbnail(mContentResolver, id,
@@ -85,6 +94,7 @@ public abstract class BaseImage implements IImage {
         }
         if (b != null) {
             b = Util.rotate(b, getDegreesRotated());
+            sMiniThumbCache.put(mUri, b);
         }
         return b;
     }
@@ -17,10 +17,10 @@
 package com.lightbox.android.camera.gallery;
 
 import com.lightbox.android.camera.ImageManager;
+import com.lightbox.android.camera.IntLruCache;
 import com.lightbox.android.camera.gallery.BaseImage;
 import com.lightbox.android.camera.gallery.IImage;
 import com.lightbox.android.camera.gallery.IImageList;
-import com.lightbox.android.camera.gallery.LruCache;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -34,8 +34,8 @@ import android.util.Log;
 public abstract class BaseImageList implements IImageList {
     private static final String TAG = "BaseImageList";
     private static final int CACHE_CAPACITY = 512;
-    private final LruCache<Integer, BaseImage> mCache =
-            new LruCache<Integer, BaseImage>(CACHE_CAPACITY);
+    // Guarded by this. Null for lists which build their images otherwise.
+    private final IntLruCache<BaseImage> mCache;
 
     protected ContentResolver mContentResolver;
     protected int mSort;
@@ -47,6 +47,18 @@ public abstract class BaseImageList implements IImageList {
 
     public BaseImageList(ContentResolver resolver, Uri uri, int sort,
             String bucketId) {
+        this(resolver, uri, sort, bucketId, true);
+    }
+
+    /**
+     * @param cacheImages false for subclasses which override
+     *     {@link #getImageAt(int)} and need no image cache.
+     */
+    protected BaseImageList(ContentResolver resolver, Uri uri, int sort,
+            String bucketId, boolean cacheImages) {
+        mCache = cacheImages
+                ? new IntLruCache<BaseImage>(CACHE_CAPACITY)
+                : null;
         mSort = sort;
         mBaseUri = uri;
         mBucketId = bucketId;
@@ -60,7 +72,11 @@ public abstract class BaseImageList implements IImageList {
         // TODO: We need to clear the cache because we may "reopen" the image
         // list. After we implement the image list state, we can remove this
         // kind of usage.
-        mCache.clear();
+        if (mCache != null) {
+            synchronized (this) {
+                mCache.clear();
+            }
+        }
     }
 
     public void close() {
@@ -116,18 +132,19 @@ public abstract class BaseImageList implements IImageList {
     }
 
     public IImage getImageAt(int i) {
-        BaseImage result = mCache.get(i);
-        if (result == null) {
-            Cursor cursor = getCursor();
-            if (cursor == null) return null;
-            synchronized (this) {
-                result = cursor.moveToPosition(i)
-                        ? loadImageFromCursor(cursor)
-                        : null;
-                mCache.put(i, result);
-            }
+        synchronized (this) {
+            BaseImage result = mCache != null ? mCache.get(i) : null;
+            if (result != null) return result;
+        }
+        Cursor cursor = getCursor();
+        if (cursor == null) return null;
+        synchronized (this) {
+            BaseImage result = cursor.moveToPosition(i)
+                    ? loadImageFromCursor(cursor)
+                    : null;
+            if (result != null && mCache != null) mCache.put(i, result);
+            return result;
         }
-        return result;
     }
 
     protected abstract Cursor createCursor();
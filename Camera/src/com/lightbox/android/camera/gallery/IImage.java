@@ -37,6 +37,7 @@ public interface IImage {
     // Get metadata of the image
     public abstract long getDateTaken();
 
-    // Get the bitmap of the mini thumbnail.
+    // Get the bitmap of the mini thumbnail. It is cached and shared, so it
+    // must not be recycled.
     public abstract Bitmap miniThumbBitmap();
 }
@@ -46,6 +46,11 @@ public class ImageList extends BaseImageList implements IImageList {
         super(resolver, imageUri, sort, bucketId);
     }
 
+    protected ImageList(ContentResolver resolver, Uri imageUri,
+            int sort, String bucketId, boolean cacheImages) {
+        super(resolver, imageUri, sort, bucketId, cacheImages);
+    }
+
     private static final String WHERE_CLAUSE =
             "(" + Media.MIME_TYPE + " in (?, ?, ?))";
     private static final String WHERE_CLAUSE_WITH_BUCKET_ID =
@@ -82,11 +87,11 @@ public class ImageList extends BaseImageList implements IImageList {
             Media.ORIENTATION,
             Media.DATE_MODIFIED};
 
-    private static final int INDEX_ID = 0;
-    private static final int INDEX_DATE_TAKEN = 1;
-    private static final int INDEX_MINI_THUMB_MAGIC = 2;
-    private static final int INDEX_ORIENTATION = 3;
-    private static final int INDEX_DATE_MODIFIED = 4;
+    static final int INDEX_ID = 0;
+    static final int INDEX_DATE_TAKEN = 1;
+    static final int INDEX_MINI_THUMB_MAGIC = 2;
+    static final int INDEX_ORIENTATION = 3;
+    static final int INDEX_DATE_MODIFIED = 4;
 
     @Override
     protected BaseImage loadImageFromCursor(Cursor cursor) {
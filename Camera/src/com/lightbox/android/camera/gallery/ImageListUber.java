@@ -20,9 +20,9 @@ import com.lightbox.android.camera.ImageManager;
 import com.lightbox.android.camera.gallery.IImage;
 import com.lightbox.android.camera.gallery.IImageList;
 
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A union of different <code>IImageList</code>. This class can merge several
@@ -33,20 +33,31 @@ public class ImageListUber implements IImageList {
     @SuppressWarnings("unused")
     private static final String TAG = "ImageListUber";
 
+    // The number of images the background builder merges per lock hold.
+    // Merging may build an image object per entry, so keep it short.
+    private static final int BUILD_CHUNK = 64;
+    // How long the builder backs off, in ms, while readers wait for the
+    // lock. Monitors are not fair, so it must step aside explicitly.
+    private static final int BUILD_BACKOFF = 2;
+
     private final IImageList [] mSubList;
     private final PriorityQueue<MergeSlot> mQueue;
 
-    // This is an array of Longs wherein each Long consists of two components:
-    // "a number" and "an index of sublist".
-    //   * The lower 32bit indicates the number of consecutive entries that
-    //     belong to a given sublist.
-    //
-    //   * The higher 32bit component indicates which sublist we're referring
-    //     to.
-    private long[] mSkipList;
-    private int mSkipListSize;
-    private final int [] mSkipCounts;
-    private int mLastListIndex;
+    // The merged order, as runs of consecutive entries that come from the
+    // same sublist. Run i covers the merged positions from mRunStart[i] up
+    // to mRunStart[i + 1] (or mMerged for the last run), which are the
+    // entries of sublist mRunList[i] from mRunSubStart[i] on. mRunStart is
+    // increasing, so a merged position is found by binary search.
+    private int [] mRunList;
+    private int [] mRunStart;
+    private int [] mRunSubStart;
+    private int mRunCount;
+    // The number of merged positions covered by the runs.
+    private int mMerged;
+    private int mCount = -1;
+    private boolean mClosed;
+    // The number of getCount() and getImageAt() calls waiting for the lock.
+    private final AtomicInteger mWaiting = new AtomicInteger();
 
     public ImageListUber(IImageList [] sublist, int sort) {
         mSubList = sublist.clone();
@@ -54,11 +65,9 @@ public class ImageListUber implements IImageList {
                 sort == ImageManager.SORT_ASCENDING
                 ? new AscendingComparator()
                 : new DescendingComparator());
-        mSkipList = new long[16];
-        mSkipListSize = 0;
-        mSkipCounts = new int[mSubList.length];
-        mLastListIndex = -1;
-        mQueue.clear();
+        mRunList = new int[16];
+        mRunStart = new int[16];
+        mRunSubStart = new int[16];
         for (int i = 0, n = mSubList.length; i < n; ++i) {
             IImageList list = mSubList[i];
             MergeSlot slot = new MergeSlot(list, i);
@@ -67,77 +76,130 @@ public class ImageListUber implements IImageList {
     }
 
     public int getCount() {
-        int count = 0;
-        for (IImageList subList : mSubList) {
-            count += subList.getCount();
+        mWaiting.incrementAndGet();
+        synchronized (this) {
+            mWaiting.decrementAndGet();
+            return getCountLocked();
         }
-        return count;
     }
 
-    // mSkipCounts is used to tally the counts as we traverse
-    // the mSkipList.  It's a member variable only so that
-    // we don't have to allocate each time through.  Otherwise
-    // it could just as easily be a local.
     public IImage getImageAt(int index) {
-        if (index < 0 || index > getCount()) {
-            throw new IndexOutOfBoundsException(
-                    "index " + index + " out of range max is " + getCount());
+        mWaiting.incrementAndGet();
+        synchronized (this) {
+            mWaiting.decrementAndGet();
+            return getImageAtLocked(index);
         }
+    }
 
-        int skipCounts[] = mSkipCounts;
-        // zero out the mSkipCounts since that's only used for the
-        // duration of the function call.
-        Arrays.fill(skipCounts, 0);
-
-        // a counter of how many images we've skipped in
-        // trying to get to index.  alternatively we could
-        // have decremented index but, alas, I liked this
-        // way more.
-        int skipCount = 0;
-
-        // scan the existing mSkipList to see if we've computed
-        // enough to just return the answer
-        for (int i = 0, n = mSkipListSize; i < n; ++i) {
-            long v = mSkipList[i];
-
-            int offset = (int) (v & 0xFFFFFFFF);
-            int which  = (int) (v >> 32);
-            if (skipCount + offset > index) {
-                int subindex = mSkipCounts[which] + (index - skipCount);
-                return mSubList[which].getImageAt(subindex);
+    private int getCountLocked() {
+        if (mCount < 0) {
+            int count = 0;
+            for (IImageList subList : mSubList) {
+                count += subList.getCount();
             }
-            skipCount += offset;
-            mSkipCounts[which] += offset;
+            mCount = count;
+        }
+        return mCount;
+    }
+
+    private IImage getImageAtLocked(int index) {
+        if (index < 0 || index > getCountLocked()) {
+            throw new IndexOutOfBoundsException("index " + index
+                    + " out of range max is " + getCountLocked());
         }
+        if (index < mMerged) return lookup(index);
 
-        for (; true; ++skipCount) {
-            MergeSlot slot = nextMergeSlot();
+        while (mMerged <= index) {
+            MergeSlot slot = mQueue.poll();
             if (slot == null) return null;
-            if (skipCount == index) {
-                IImage result = slot.mImage;
+            if (mQueue.isEmpty()) {
+                // Only one sublist is left; the rest of it is one run.
+                appendRun(slot.mListIndex, slot.mOffset,
+                        slot.mList.getCount() - slot.mOffset);
+                break;
+            }
+            appendRun(slot.mListIndex, slot.mOffset, 1);
+            if (mMerged > index) {
+                IImage result = slot.getImage();
                 if (slot.next()) mQueue.add(slot);
                 return result;
             }
             if (slot.next()) mQueue.add(slot);
         }
+        return index < mMerged ? lookup(index) : null;
+    }
+
+    /**
+     * Merges the whole list on a background thread, so that later calls to
+     * {@link #getImageAt(int)} are all binary searches. Stops when the list
+     * is closed. The builder lets callers which are waiting for the list go
+     * first between chunks.
+     */
+    public void buildIndexInBackground() {
+        Thread t = new Thread("ImageListUber") {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (ImageListUber.this) {
+                        if (mClosed || mQueue.isEmpty()) return;
+                        getImageAtLocked(Math.min(mMerged + BUILD_CHUNK - 1,
+                                getCountLocked() - 1));
+                    }
+                    try {
+                        while (mWaiting.get() > 0) {
+                            Thread.sleep(BUILD_BACKOFF);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
     }
 
-    private MergeSlot nextMergeSlot() {
-        MergeSlot slot = mQueue.poll();
-        if (slot == null) return null;
-        if (slot.mListIndex == mLastListIndex) {
-            int lastIndex = mSkipListSize - 1;
-            ++mSkipList[lastIndex];
-        } else {
-            mLastListIndex = slot.mListIndex;
-            if (mSkipList.length == mSkipListSize) {
-                long [] temp = new long[mSkipListSize * 2];
-                System.arraycopy(mSkipList, 0, temp, 0, mSkipListSize);
-                mSkipList = temp;
+    // Returns the image at a merged position below mMerged.
+    private IImage lookup(int index) {
+        int low = 0;
+        int high = mRunCount - 1;
+        // Find the last run which starts at or before index.
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mRunStart[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
             }
-            mSkipList[mSkipListSize++] = (((long) mLastListIndex) << 32) | 1;
         }
-        return slot;
+        return mSubList[mRunList[low]].getImageAt(
+                mRunSubStart[low] + index - mRunStart[low]);
+    }
+
+    private void appendRun(int listIndex, int subStart, int length) {
+        int last = mRunCount - 1;
+        if (last >= 0 && mRunList[last] == listIndex) {
+            mMerged += length;
+            return;
+        }
+        if (mRunCount == mRunList.length) {
+            int size = mRunCount * 2;
+            mRunList = grow(mRunList, size);
+            mRunStart = grow(mRunStart, size);
+            mRunSubStart = grow(mRunSubStart, size);
+        }
+        mRunList[mRunCount] = listIndex;
+        mRunStart[mRunCount] = mMerged;
+        mRunSubStart[mRunCount] = subStart;
+        mRunCount++;
+        mMerged += length;
+    }
+
+    private static int [] grow(int [] array, int size) {
+        int [] temp = new int[size];
+        System.arraycopy(array, 0, temp, 0, array.length);
+        return temp;
     }
 
     private static class DescendingComparator implements Comparator<MergeSlot> {
@@ -183,13 +245,26 @@ public class ImageListUber implements IImageList {
 
         public boolean next() {
             if (mOffset >= mList.getCount() - 1) return false;
-            mImage = mList.getImageAt(++mOffset);
-            mDateTaken = mImage.getDateTaken();
+            ++mOffset;
+            if (mList instanceof ImageSnapshotList) {
+                // Compare by date without building the image.
+                mImage = null;
+                mDateTaken =
+                        ((ImageSnapshotList) mList).getDateTakenAt(mOffset);
+            } else {
+                mImage = mList.getImageAt(mOffset);
+                mDateTaken = mImage.getDateTaken();
+            }
             return true;
         }
+
+        public IImage getImage() {
+            return mImage != null ? mImage : mList.getImageAt(mOffset);
+        }
     }
 
-    public void close() {
+    public synchronized void close() {
+        mClosed = true;
         for (int i = 0, n = mSubList.length; i < n; ++i) {
             mSubList[i].close();
         }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera.gallery;
+
+import com.lightbox.android.camera.gallery.IImage;
+import com.lightbox.android.camera.gallery.Image;
+import com.lightbox.android.camera.gallery.ImageList;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * An <code>ImageList</code> which copies the columns it needs out of the
+ * cursor into primitive arrays.
+ *
+ * <p>The rows are read in windows of {@link #WINDOW} rows, in order, the
+ * first time one of them is asked for. The cursor is closed once every row
+ * has been read. Counting and {@link #getDateTakenAt(int)} never build an
+ * image; {@link #getImageAt(int)} builds a new <code>Image</code> from the
+ * arrays each time, which is cheaper than the cursor move and the cache it
+ * replaces.
+ */
+public class ImageSnapshotList extends ImageList {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ImageSnapshotList";
+
+    private static final int WINDOW = 256;
+
+    private long[] mIds;
+    private long[] mDates;
+    private int[] mOrientations;
+    private int mCount = -1;
+    // The number of rows copied so far.
+    private int mLoaded;
+
+    public ImageSnapshotList(ContentResolver resolver, Uri imageUri,
+            int sort, String bucketId) {
+        // getImageAt() builds its images from the arrays; no cache needed.
+        super(resolver, imageUri, sort, bucketId, false);
+    }
+
+    @Override
+    public synchronized int getCount() {
+        if (mCount < 0) {
+            mCount = mCursor == null ? 0 : mCursor.getCount();
+            mIds = new long[mCount];
+            mDates = new long[mCount];
+            mOrientations = new int[mCount];
+        }
+        return mCount;
+    }
+
+    @Override
+    public IImage getImageAt(int i) {
+        long id;
+        long dateTaken;
+        int orientation;
+        synchronized (this) {
+            if (!load(i)) return null;
+            id = mIds[i];
+            dateTaken = mDates[i];
+            orientation = mOrientations[i];
+        }
+        return new Image(mContentResolver, id, contentUri(id), 0, dateTaken,
+                orientation);
+    }
+
+    /**
+     * Returns the date taken of the ith image without building it, or 0 if
+     * there is no such image.
+     */
+    public synchronized long getDateTakenAt(int i) {
+        return load(i) ? mDates[i] : 0;
+    }
+
+    // Copies the rows up to i, and at least a window of rows, if they have
+    // not been copied yet. Returns whether row i is available.
+    private boolean load(int i) {
+        if (i < 0 || i >= getCount()) return false;
+        if (i < mLoaded) return true;
+
+        Cursor cursor = mCursor;
+        if (cursor == null || !cursor.moveToPosition(mLoaded)) return false;
+        int end = Math.min(mCount, Math.max(i + 1, mLoaded + WINDOW));
+        do {
+            long dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
+            if (dateTaken == 0) {
+                dateTaken = cursor.getLong(INDEX_DATE_MODIFIED) * 1000;
+            }
+            mIds[mLoaded] = cursor.getLong(INDEX_ID);
+            mDates[mLoaded] = dateTaken;
+            mOrientations[mLoaded] = cursor.getInt(INDEX_ORIENTATION);
+            mLoaded++;
+        } while (mLoaded < end && cursor.moveToNext());
+
+        if (mLoaded == mCount) {
+            // Everything is in the arrays; the cursor is of no more use.
+            cursor.close();
+            mCursor = null;
+        }
+        return i < mLoaded;
+    }
+}
@@ -61,10 +61,14 @@ public class VideoObject extends BaseImage implements IImage {
 
     @Override
     public Bitmap miniThumbBitmap() {
+        Bitmap b = sMiniThumbCache.get(mUri);
+        if (b != null) return b;
         try {
             long id = mId;
-            return BitmapManager.instance().getThumbnail(mContentResolver,
+            b = BitmapManager.instance().getThumbnail(mContentResolver,
                     id, Images.Thumbnails.MICRO_KIND, null, true);
+            sMiniThumbCache.put(mUri, b);
+            return b;
         } catch (Throwable ex) {
             Log.e(TAG, "miniThumbBitmap got exception", ex);
             return null;
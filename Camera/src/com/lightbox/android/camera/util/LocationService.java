@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.location.Location;
+
+// Keeps the most recent location fix, and looks up its address on one
+// long-lived worker thread.
+//
+// getLocation() is a volatile read, so the capture path can tag pictures
+// without waiting for anything. Fixes older than the maximum age are not
+// returned. Addresses are cached by position rounded to about 100m, so
+// moving around the same place does not hit the Geocoder again.
+public class LocationService {
+	private static final int DEFAULT_MAX_AGE = 10 * 60 * 1000;
+	private static final int ADDRESS_CACHE_SIZE = 32;
+	// Positions are rounded to 1/1000 degree for the address cache.
+	private static final double ADDRESS_GRID = 1000;
+
+	public interface Listener {
+		// Called on the worker thread with each new fix and its address.
+		public void onLocationUpdated(Location location, String address);
+	}
+
+	private final Context mContext;
+	private final Listener mListener;
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LocationService");
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	private final LinkedHashMap<Long, String> mAddresses =
+			new LinkedHashMap<Long, String>(ADDRESS_CACHE_SIZE, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+					return size() > ADDRESS_CACHE_SIZE;
+				}
+			};
+
+	private volatile Location mLocation;
+	private volatile long mMaxAge = DEFAULT_MAX_AGE;
+
+	public LocationService(Context context, Listener listener) {
+		mContext = context;
+		mListener = listener;
+	}
+
+	// Returns the last fix if it is not older than the maximum age, or null.
+	public Location getLocation() {
+		Location location = mLocation;
+		if (location == null
+				|| System.currentTimeMillis() - location.getTime() > mMaxAge) {
+			return null;
+		}
+		return location;
+	}
+
+	public void setMaxAge(long maxAge) {
+		mMaxAge = maxAge;
+	}
+
+	public long getMaxAge() {
+		return mMaxAge;
+	}
+
+	// Takes a new fix. A null fix means none could be found; the last one
+	// is kept, and it ages out on its own.
+	public void onLocation(final Location location) {
+		if (location != null && isNewer(location)) {
+			mLocation = location;
+		}
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				String address = location != null
+						? getAddress(location) : "Location not found";
+				if (mListener != null) {
+					mListener.onLocationUpdated(location, address);
+				}
+			}
+		});
+	}
+
+	// Takes the last location known to the system, without starting any
+	// provider. Runs on the worker thread.
+	public void refreshLastKnownLocation() {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				Location location =
+						new MyLocation(mContext).getLastKnownLocation();
+				if (location != null && isNewer(location)) {
+					mLocation = location;
+				}
+			}
+		});
+	}
+
+	private boolean isNewer(Location location) {
+		Location last = mLocation;
+		return last == null || location.getTime() >= last.getTime();
+	}
+
+	// Runs on the worker thread.
+	private String getAddress(Location location) {
+		long key = (Math.round(location.getLatitude() * ADDRESS_GRID) << 32)
+				^ (Math.round(location.getLongitude() * ADDRESS_GRID)
+						& 0xffffffffL);
+		String address = mAddresses.get(key);
+		if (address == null) {
+			address = MyLocation.getGeoLocationString(mContext,
+					location.getLatitude(), location.getLongitude());
+			// Don't cache failed lookups; they may work next time.
+			if (address.length() > 0) {
+				mAddresses.put(key, address);
+			}
+		}
+		return address;
+	}
+}
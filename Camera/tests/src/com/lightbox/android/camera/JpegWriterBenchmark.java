@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times {@link JpegWriter} with each sync policy, with and without
+ * preallocation. The numbers only mean something on the storage the
+ * pictures go to, so run it on a device against the SD card:
+ *
+ * <pre>
+ * adb shell dalvikvm -cp /data/app/com.lightbox.android.camera.tests-1.apk \
+ *     com.lightbox.android.camera.JpegWriterBenchmark /sdcard/bench [count]
+ * </pre>
+ *
+ * It also runs on a desktop JVM with the Android jar on the class path.
+ */
+public class JpegWriterBenchmark {
+    // About the size of a 5 megapixel JPEG.
+    private static final int PICTURE_SIZE = 1500 * 1024;
+
+    private static final int[] POLICIES = {
+        JpegWriter.SYNC_NONE, JpegWriter.SYNC_PER_FILE,
+        JpegWriter.SYNC_BATCHED,
+    };
+    private static final String[] POLICY_NAMES = {
+        "SYNC_NONE", "SYNC_PER_FILE", "SYNC_BATCHED",
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: JpegWriterBenchmark dir [count]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        byte[] data = new byte[PICTURE_SIZE];
+        new Random(1).nextBytes(data);
+
+        // Warm up the file system and the code.
+        run(new JpegWriter(JpegWriter.SYNC_NONE), dir, data, 3);
+
+        for (int i = 0; i < POLICIES.length; i++) {
+            for (int p = 0; p < 2; p++) {
+                boolean preallocate = p == 1;
+                JpegWriter writer = new JpegWriter(POLICIES[i], 4,
+                        preallocate);
+                long elapsed = run(writer, dir, data, count);
+                System.out.println(POLICY_NAMES[i]
+                        + (preallocate ? ", preallocated: " : ": ")
+                        + (elapsed / 1000 / count / 1000.0) + " ms/picture, "
+                        + (PICTURE_SIZE / 1024 * count * 1000000000L
+                                / Math.max(1, elapsed)) + " KB/s");
+            }
+        }
+    }
+
+    // Writes count pictures, flushes and returns the time taken in ns. The
+    // files are deleted afterwards.
+    private static long run(JpegWriter writer, File dir, byte[] data,
+            int count) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            writer.write(dir, "bench" + i + ".jpg", data);
+        }
+        writer.flush();
+        long elapsed = System.nanoTime() - start;
+        for (int i = 0; i < count; i++) {
+            new File(dir, "bench" + i + ".jpg").delete();
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link JpegWriter} writes the same bytes with every sync
+ * policy, with and without preallocation, and leaves no temporary files.
+ */
+public class JpegWriterTest extends TestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = File.createTempFile("JpegWriterTest", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testWritesData() throws IOException {
+        int[] policies = {
+            JpegWriter.SYNC_NONE, JpegWriter.SYNC_PER_FILE,
+            JpegWriter.SYNC_BATCHED,
+        };
+        byte[] data = new byte[100 * 1024 + 7];
+        new Random(1).nextBytes(data);
+        for (int policy : policies) {
+            for (int p = 0; p < 2; p++) {
+                JpegWriter writer = new JpegWriter(policy, 2, p == 1);
+                for (int i = 0; i < 3; i++) {
+                    String name = policy + "-" + p + "-" + i + ".jpg";
+                    assertEquals(data.length, writer.write(mDir, name, data));
+                    assertTrue(name, Arrays.equals(data,
+                            read(new File(mDir, name))));
+                }
+                writer.flush();
+            }
+        }
+        assertEquals(3 * 2 * 3, mDir.list().length);
+    }
+
+    public void testReplacesExistingFile() throws IOException {
+        JpegWriter writer = new JpegWriter(JpegWriter.SYNC_NONE);
+        writer.write(mDir, "a.jpg", new byte[1000]);
+        byte[] data = {1, 2, 3};
+        writer.write(mDir, "a.jpg", data);
+        assertTrue(Arrays.equals(data, read(new File(mDir, "a.jpg"))));
+        assertEquals(1, mDir.list().length);
+    }
+
+    public void testCreatesDirectory() throws IOException {
+        File dir = new File(mDir, "sub");
+        new JpegWriter(JpegWriter.SYNC_NONE).write(dir, "a.jpg", new byte[1]);
+        assertTrue(new File(dir, "a.jpg").isFile());
+        new File(dir, "a.jpg").delete();
+        dir.delete();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) break;
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
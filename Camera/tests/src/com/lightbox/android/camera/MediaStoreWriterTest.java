@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.ArrayList;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Runs {@link MediaStoreWriter} against an in-memory provider which, like
+ * the media store, applies a batch without a transaction.
+ */
+public class MediaStoreWriterTest extends AndroidTestCase {
+    private static final String AUTHORITY =
+            "com.lightbox.android.camera.tests";
+    private static final Uri URI =
+            Uri.parse("content://" + AUTHORITY + "/rows");
+    private static final String KEY = "path";
+
+    private static class RowProvider extends ContentProvider {
+        final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+        // The insert, counted from 0, which fails once.
+        int mFailAt = -1;
+        // Rows with this key are never inserted.
+        String mBadKey;
+        int mInserts;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            if (mInserts++ == mFailAt
+                    || values.getAsString(KEY).equals(mBadKey)) {
+                throw new IllegalArgumentException("cannot insert " + values);
+            }
+            mRows.add(new ContentValues(values));
+            return ContentUris.withAppendedId(uri, mRows.size());
+        }
+
+        // Only answers the lookup by key the writer makes.
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            assertEquals(KEY + "=?", selection);
+            MatrixCursor c = new MatrixCursor(
+                    new String[] {BaseColumns._ID});
+            for (int i = 0; i < mRows.size(); i++) {
+                if (mRows.get(i).getAsString(KEY).equals(selectionArgs[0])) {
+                    c.addRow(new Object[] {Long.valueOf(i + 1)});
+                }
+            }
+            return c;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private RowProvider mProvider;
+    private MediaStoreWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RowProvider();
+        // Makes the provider trust calls from this process.
+        mProvider.attachInfo(getContext(), null);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(AUTHORITY, mProvider);
+        mWriter = new MediaStoreWriter(resolver, URI, KEY);
+    }
+
+    public void testInsertsBatch() {
+        addRows(3);
+        Uri[] uris = mWriter.flush();
+        assertEquals(3, mProvider.mRows.size());
+        assertUris(uris, 1, 2, 3);
+        assertEquals(0, mWriter.getPendingCount());
+    }
+
+    public void testEmptyFlush() {
+        assertEquals(0, mWriter.flush().length);
+    }
+
+    public void testPartialBatchFailureDoesNotDuplicateRows() {
+        mProvider.mFailAt = 2;
+        addRows(4);
+        Uri[] uris = mWriter.flush();
+        // The first two rows were inserted by the batch and are found
+        // again; the other two are inserted one by one.
+        assertEquals(4, mProvider.mRows.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("/" + i, mProvider.mRows.get(i).getAsString(KEY));
+        }
+        assertUris(uris, 1, 2, 3, 4);
+    }
+
+    public void testBadRowDoesNotLoseOthers() {
+        mProvider.mBadKey = "/1";
+        addRows(3);
+        Uri[] uris = mWriter.flush();
+        assertEquals(2, mProvider.mRows.size());
+        assertEquals(ContentUris.withAppendedId(URI, 1), uris[0]);
+        assertNull(uris[1]);
+        assertEquals(ContentUris.withAppendedId(URI, 2), uris[2]);
+    }
+
+    private void addRows(int count) {
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(KEY, "/" + i);
+            assertEquals(i, mWriter.add(values));
+        }
+    }
+
+    private static void assertUris(Uri[] uris, long... ids) {
+        assertEquals(ids.length, uris.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ContentUris.withAppendedId(URI, ids[i]), uris[i]);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.Random;
+
+/**
+ * Times {@link YuvConverter} against {@link Util#decodeYUV} on a desktop
+ * JVM. Run it with the Android jar and the app classes on the class path:
+ *
+ * <pre>
+ * java -cp android.jar:bin/classes:tests/bin/classes \
+ *     com.lightbox.android.camera.YuvConverterBenchmark [iterations]
+ * </pre>
+ */
+public class YuvConverterBenchmark {
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}};
+    private static final int WARMUP = 20;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        YuvConverter single = new YuvConverter(1);
+        YuvConverter parallel =
+                new YuvConverter(YuvConverter.getDefaultThreadCount());
+        try {
+            for (int[] size : SIZES) {
+                run(size[0], size[1], iterations, single, parallel);
+            }
+        } finally {
+            single.release();
+            parallel.release();
+        }
+    }
+
+    private static void run(final int width, final int height,
+            int iterations, final YuvConverter single,
+            final YuvConverter parallel) {
+        final byte[] frame =
+                new byte[YuvConverter.requiredLength(width, height)];
+        new Random(1).nextBytes(frame);
+        final int[] out = new int[width * height];
+        final int sampleSize = YuvConverter.computeSampleSize(width, 320);
+
+        System.out.println(width + "x" + height + ", " + iterations
+                + " frames:");
+        time("  Util.decodeYUV", iterations, new Runnable() {
+            public void run() {
+                Util.decodeYUV(out, frame, width, height);
+            }
+        });
+        time("  convert, 1 thread", iterations, new Runnable() {
+            public void run() {
+                single.convert(frame, width, height, out);
+            }
+        });
+        time("  convert, default threads ("
+                + YuvConverter.getDefaultThreadCount() + ")", iterations,
+                new Runnable() {
+            public void run() {
+                parallel.convert(frame, width, height, out);
+            }
+        });
+        time("  decodeYUV, then subsample / " + sampleSize,
+                iterations, new Runnable() {
+            public void run() {
+                Util.decodeYUV(out, frame, width, height);
+                subsample(out, width, height, sampleSize);
+            }
+        });
+        time("  convertScaled / " + sampleSize + ", mirrored", iterations,
+                new Runnable() {
+            public void run() {
+                single.convertScaled(frame, width, height, sampleSize, true,
+                        out);
+            }
+        });
+    }
+
+    // What the preview animation did before convertScaled: pick every
+    // sampleSize-th pixel out of the full size frame.
+    private static void subsample(int[] pixels, int width, int height,
+            int sampleSize) {
+        int dstWidth = width / sampleSize;
+        int dstHeight = height / sampleSize;
+        int dst = 0;
+        for (int j = 0; j < dstHeight; j++) {
+            int row = j * sampleSize * width;
+            for (int i = 0; i < dstWidth; i++) {
+                pixels[dst++] = pixels[row + i * sampleSize];
+            }
+        }
+    }
+
+    private static void time(String name, int iterations, Runnable r) {
+        for (int i = 0; i < WARMUP; i++) {
+            r.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            r.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": "
+                + (elapsed / 1000 / iterations / 1000.0) + " ms/frame");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.camera;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link YuvConverter} against {@link Util#decodeYUV}, pixel for
+ * pixel. It uses no Android classes, so it also runs on a desktop JVM with
+ * the Android jar on the class path.
+ */
+public class YuvConverterTest extends TestCase {
+    // Even and odd sizes, and one tall enough to be split into bands.
+    private static final int[][] SIZES = {
+        {1, 1}, {2, 2}, {3, 3}, {16, 9}, {17, 11}, {320, 240}, {321, 241},
+        {640, 480},
+    };
+
+    private YuvConverter mSingle;
+    private YuvConverter mParallel;
+
+    @Override
+    protected void setUp() {
+        mSingle = new YuvConverter(1);
+        mParallel = new YuvConverter(4);
+    }
+
+    @Override
+    protected void tearDown() {
+        mSingle.release();
+        mParallel.release();
+    }
+
+    public void testConvertMatchesDecodeYuv() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] frame = makeFrame(width, height, width * 31 + height);
+            int[] expected = decode(frame, width, height);
+            String name = width + "x" + height;
+            assertPixels(name, expected,
+                    mSingle.convert(frame, width, height, null));
+            assertPixels(name + " parallel", expected,
+                    mParallel.convert(frame, width, height, null));
+        }
+    }
+
+    public void testConvertReusesLargeEnoughBuffer() {
+        byte[] frame = makeFrame(16, 9, 1);
+        int[] out = new int[16 * 9 + 5];
+        assertSame(out, mSingle.convert(frame, 16, 9, out));
+        int[] small = new int[10];
+        assertNotSame(small, mSingle.convert(frame, 16, 9, small));
+    }
+
+    public void testConvertScaledMatchesDecodeYuv() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] frame = makeFrame(width, height, width * 17 + height);
+            int[] full = decode(frame, width, height);
+            for (int sampleSize = 1; sampleSize <= 4; sampleSize++) {
+                checkScaled(frame, full, width, height, sampleSize, false);
+                checkScaled(frame, full, width, height, sampleSize, true);
+            }
+        }
+    }
+
+    public void testComputeSampleSize() {
+        assertEquals(1, YuvConverter.computeSampleSize(320, 320));
+        assertEquals(2, YuvConverter.computeSampleSize(640, 320));
+        assertEquals(2, YuvConverter.computeSampleSize(800, 320));
+        assertEquals(1, YuvConverter.computeSampleSize(100, 320));
+        assertEquals(1, YuvConverter.computeSampleSize(640, 0));
+    }
+
+    public void testShortBufferIsRejected() {
+        byte[] frame = new byte[16 * 9];
+        try {
+            mSingle.convert(frame, 16, 9, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void checkScaled(byte[] frame, int[] full, int width, int height,
+            int sampleSize, boolean mirror) {
+        int dstWidth = YuvConverter.scaledLength(width, sampleSize);
+        int dstHeight = YuvConverter.scaledLength(height, sampleSize);
+        int[] actual = mSingle.convertScaled(frame, width, height, sampleSize,
+                mirror, null);
+        String name = width + "x" + height + " / " + sampleSize
+                + (mirror ? " mirrored" : "");
+        for (int j = 0; j < dstHeight; j++) {
+            for (int i = 0; i < dstWidth; i++) {
+                int x = (mirror ? dstWidth - 1 - i : i) * sampleSize;
+                int expected = full[j * sampleSize * width + x];
+                int pixel = actual[j * dstWidth + i];
+                if (pixel != expected) {
+                    fail(name + ": pixel (" + i + ", " + j + ") is "
+                            + Integer.toHexString(pixel) + ", expected "
+                            + Integer.toHexString(expected));
+                }
+            }
+        }
+    }
+
+    private static int[] decode(byte[] frame, int width, int height) {
+        int[] out = new int[width * height];
+        Util.decodeYUV(out, frame, width, height);
+        return out;
+    }
+
+    private static void assertPixels(String name, int[] expected,
+            int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (actual[i] != expected[i]) {
+                fail(name + ": pixel " + i + " is "
+                        + Integer.toHexString(actual[i]) + ", expected "
+                        + Integer.toHexString(expected[i]));
+            }
+        }
+    }
+
+    // Returns a frame of random samples, with the extreme values of each
+    // channel in the first pixels.
+    static byte[] makeFrame(int width, int height, long seed) {
+        byte[] frame = new byte[YuvConverter.requiredLength(width, height)];
+        new Random(seed).nextBytes(frame);
+        int size = width * height;
+        byte[] extremes = {0, (byte) 0xFF, (byte) 0x80, 0x7F};
+        for (int i = 0; i < extremes.length && i < size; i++) {
+            frame[i] = extremes[i];
+        }
+        for (int i = 0; i < extremes.length && size + i < frame.length;
+                i++) {
+            frame[size + i] = extremes[extremes.length - 1 - i];
+        }
+        return frame;
+    }
+}